@@ -1,26 +1,34 @@
 package edu.univ_tlse3;
 
+import com.google.common.eventbus.Subscribe;
 import ij.IJ;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import mmcorej.*;
 import org.json.JSONException;
 import org.micromanager.AutofocusPlugin;
 import org.micromanager.PositionList;
 import org.micromanager.Studio;
-import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
-import org.micromanager.data.Image;
+import org.micromanager.events.AcquisitionStartedEvent;
+import org.micromanager.events.AutoShutterEvent;
+import org.micromanager.events.ConfigGroupChangedEvent;
+import org.micromanager.events.ExposureChangedEvent;
+import org.micromanager.events.PropertiesChangedEvent;
+import org.micromanager.events.PropertyChangedEvent;
+import org.micromanager.events.ShutterEvent;
+import org.micromanager.events.SystemConfigurationLoadedEvent;
 import org.micromanager.internal.utils.*;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 import org.scijava.plugin.Plugin;
 import org.scijava.plugin.SciJavaPlugin;
 
-import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.text.ParseException;
@@ -45,7 +53,8 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
     private static final String XY_CORRECTION_TEXT = "Correct XY at same time";
     private static final String DETECTORALGO_TEXT = "Feature detector algorithm";
     private static final String MATCHERALGO_TEXT = "Matches extractor algorithm";
-    private static final String[] DETECTORALGO_VALUES = {"AKAZE", "BRISK", "ORB"};
+    private static final String[] DETECTORALGO_VALUES = {"AKAZE", "BRISK", "ORB", DriftEstimatorTuner.PHASE_CORRELATION,
+            DriftEstimatorTuner.PYRAMID};
     private static final String[] MATCHERALGO_VALUES = {"AKAZE", "BRISK", "ORB"};
     private static final String[] SHOWIMAGES_VALUES = {"Yes", "No"};
     private static final String[] SAVEIMAGES_VALUES = {"Yes", "No"};
@@ -53,6 +62,51 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
     private static final String[] XY_CORRECTION_VALUES = {"Yes", "No"};
     private static final String UMPERSTEP = "µm displacement allowed per time point";
     private static final String Z_OFFSET = "Z offset";
+    private static final String Z_SCAN_MODE_TEXT = "Z scan mode";
+    private static final String SCAN_STOP_MARGIN = "Scan stop margin (%)";
+    private static final String SERPENTINE_TEXT = "Serpentine Z scan";
+    private static final String[] SERPENTINE_VALUES = {"Yes", "No"};
+    private static final String Z_BACKLASH = "Z backlash approach (um)";
+    private static final String SETTLE_CALIBRATION_TEXT = "Calibrate focus settle time";
+    private static final String[] SETTLE_CALIBRATION_VALUES = {"Yes", "No"};
+    private static final String AUTO_ROI_TEXT = "Place cropped ROI on most textured region";
+    private static final String[] AUTO_ROI_VALUES = {"Yes", "No"};
+    private static final String PREDICT_DRIFT_TEXT = "Predict drift between time points";
+    private static final String[] PREDICT_DRIFT_VALUES = {"Yes", "No"};
+    //Predicted Z search range : +/- 3 residual standard deviations, never less than 6 steps
+    private static final double PREDICTED_RANGE_RESIDUALS = 6;
+    private static final double PREDICTED_RANGE_MIN_STEPS = 6;
+    private static final String SAVE_MODE_TEXT = "Saved slices";
+    private static final String SAVE_AROUND = "Slices saved around focus";
+    private static final String SAVE_BINNING_TEXT = "Saved images binning";
+    private static final String[] SAVE_BINNING_VALUES = {"1", "2", "4"};
+    private static final String SAVE_COMPRESSION_TEXT = "Compress saved images";
+    private static final String[] SAVE_COMPRESSION_VALUES = {"Yes", "No"};
+    private static final String FULL_STACK_PERIOD = "Full stack every N time points (0 = never)";
+    private static final String SCAN_BINNING_TEXT = "Z scan binning";
+    private static final String[] SCAN_BINNING_VALUES = {"1", "2", "4"};
+    private static final String AUTO_TUNE_TEXT = "Auto-select drift algorithm";
+    private static final String[] AUTO_TUNE_VALUES = {"Yes", "No"};
+    private static final String AUTO_TUNE_TOLERANCE = "Auto-select tolerance (um)";
+    private static final String SINGLE_SNAP_TEXT = "Single-snap Z from reference stack";
+    private static final String[] SINGLE_SNAP_VALUES = {"Yes", "No"};
+    private static final String SINGLE_SNAP_CORRELATION = "Single-snap minimum correlation";
+    private static final String FOCUS_MAP_PERIOD = "Focus map anchor every N positions (0 = off)";
+    private static final String OVERLAP_MOVES_TEXT = "Move XY and Z together";
+    private static final String[] OVERLAP_MOVES_VALUES = {"Yes", "No"};
+    private static final String XY_DEADBAND = "XY deadband (um)";
+    private static final String Z_DEADBAND = "Z deadband (um)";
+    private static final String BUDGET_SHARE = "Time budget (% of interval, 0 = none)";
+    private static final String TILED_DETECTION_TEXT = "Tiled multi-threaded keypoint detection";
+    private static final String[] TILED_DETECTION_VALUES = {"Yes", "No"};
+    private static final String GUIDED_MATCHING_TEXT = "Match only within allowed displacement";
+    private static final String[] GUIDED_MATCHING_VALUES = {"Yes", "No"};
+    private static final String REGION_COLUMNS = "Focus region columns";
+    private static final String REGION_ROWS = "Focus region rows";
+    private static final String REGION_FOCUS_TEXT = "Focus from regions";
+    private static final String SELECTED_REGION = "Selected focus region (row-major index)";
+    private static final int WARM_UP_BLOCK = 8;
+    private static final int WARM_UP_SHIFT = 3;
 
     //Set default parameters
     private double searchRange = 10;
@@ -65,21 +119,57 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
     private int timepoint = 0;
     private double step = 0.3;
     private String xy_correction = "Yes";
-    private Map<String, Mat> refImageDict = new HashMap<>();
-    private Map<String, double[]> oldPositionsDict = new HashMap<>();
+    private final PositionTable positions = new PositionTable(this::releaseAfterDriftJobs);
     private double umPerStep = 15;
     private String detectorAlgo = "AKAZE";
     private String matcherAlgo = "BRISK";
     private double zOffset = -1;
+    private String zScanMode = ZScan.FULL;
+    private double scanStopMargin = 10;
+    private String serpentine = "No";
+    private double zBacklash = 0;
+    private String settleCalibration = "No";
+    private String autoRoi = "No";
+    private String predictDrift = "No";
+    private final DriftPredictor driftPredictor = new DriftPredictor(positions);
+    private final double[] predictedPositions = new double[3];
+    private String saveMode = StackRetention.FULL_STACK;
+    private int saveAround = 2;
+    private String saveBinning = "1";
+    private String saveCompression = "No";
+    private int fullStackPeriod = 0;
+    private String scanBinning = "1";
+    private String autoTune = "No";
+    private double autoTuneTolerance = 0.5;
+    private DriftEstimatorTuner.Candidate tunedEstimator = null;
+    private String singleSnap = "No";
+    private double singleSnapCorrelation = 0.8;
+    private int focusMapPeriod = 0;
+    private final FocusSurface focusSurface = new FocusSurface(positions);
+    private String overlapMoves = "Yes";
+    private double xyDeadband = 0.1;
+    private double zDeadband = 0.01;
+    private double budgetShare = 0;
+    private final LatencyBudget latencyBudget = new LatencyBudget();
+    private String tiledDetection = "No";
+    private String guidedMatching = "No";
+    private int regionColumns = 1;
+    private int regionRows = 1;
+    private String regionFocus = RegionFocus.WHOLE_FIELD;
+    private int selectedRegion = 0;
 
     //Global variables
     private Studio studio_;
-    private CMMCore core_;
+    private CachedMicroscope microscope_;
     private Mat imgRef_Mat = null;
     private double calibration = 0;
     private double intervalInMin = 0;
-    private int positionIndex = 0;
     private String savingPath;
+    private final FocusTimer timer = new FocusTimer();
+    private FocusStage focusStage;
+    private StageMotion stageMotion;
+    private boolean descendingScan = false;
+    private ExecutorService driftExecutor = null;
 
     //Begin autofocus
     public BFAutofocus() {
@@ -95,7 +185,35 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         super.createProperty(CHANNEL, channel);
         super.createProperty(UMPERSTEP, NumberUtils.doubleToDisplayString(umPerStep));
         super.createProperty(SAVEIMGS_TEXT, save, SAVEIMAGES_VALUES);
-        nu.pattern.OpenCV.loadShared();
+        super.createProperty(Z_SCAN_MODE_TEXT, zScanMode, ZScan.MODES);
+        super.createProperty(SCAN_STOP_MARGIN, NumberUtils.doubleToDisplayString(scanStopMargin));
+        super.createProperty(SERPENTINE_TEXT, serpentine, SERPENTINE_VALUES);
+        super.createProperty(Z_BACKLASH, NumberUtils.doubleToDisplayString(zBacklash));
+        super.createProperty(SETTLE_CALIBRATION_TEXT, settleCalibration, SETTLE_CALIBRATION_VALUES);
+        super.createProperty(AUTO_ROI_TEXT, autoRoi, AUTO_ROI_VALUES);
+        super.createProperty(PREDICT_DRIFT_TEXT, predictDrift, PREDICT_DRIFT_VALUES);
+        super.createProperty(SAVE_MODE_TEXT, saveMode, StackRetention.MODES);
+        super.createProperty(SAVE_AROUND, String.valueOf(saveAround));
+        super.createProperty(SAVE_BINNING_TEXT, saveBinning, SAVE_BINNING_VALUES);
+        super.createProperty(SAVE_COMPRESSION_TEXT, saveCompression, SAVE_COMPRESSION_VALUES);
+        super.createProperty(FULL_STACK_PERIOD, String.valueOf(fullStackPeriod));
+        super.createProperty(SCAN_BINNING_TEXT, scanBinning, SCAN_BINNING_VALUES);
+        super.createProperty(AUTO_TUNE_TEXT, autoTune, AUTO_TUNE_VALUES);
+        super.createProperty(AUTO_TUNE_TOLERANCE, NumberUtils.doubleToDisplayString(autoTuneTolerance));
+        super.createProperty(SINGLE_SNAP_TEXT, singleSnap, SINGLE_SNAP_VALUES);
+        super.createProperty(SINGLE_SNAP_CORRELATION, NumberUtils.doubleToDisplayString(singleSnapCorrelation));
+        super.createProperty(FOCUS_MAP_PERIOD, String.valueOf(focusMapPeriod));
+        super.createProperty(OVERLAP_MOVES_TEXT, overlapMoves, OVERLAP_MOVES_VALUES);
+        super.createProperty(XY_DEADBAND, NumberUtils.doubleToDisplayString(xyDeadband));
+        super.createProperty(Z_DEADBAND, NumberUtils.doubleToDisplayString(zDeadband));
+        super.createProperty(BUDGET_SHARE, NumberUtils.doubleToDisplayString(budgetShare));
+        super.createProperty(TILED_DETECTION_TEXT, tiledDetection, TILED_DETECTION_VALUES);
+        super.createProperty(GUIDED_MATCHING_TEXT, guidedMatching, GUIDED_MATCHING_VALUES);
+        super.createProperty(REGION_COLUMNS, String.valueOf(regionColumns));
+        super.createProperty(REGION_ROWS, String.valueOf(regionRows));
+        super.createProperty(REGION_FOCUS_TEXT, regionFocus, RegionFocus.MODES);
+        super.createProperty(SELECTED_REGION, String.valueOf(selectedRegion));
+        FocusTimer.register(timer);
     }
 
     @Override
@@ -113,22 +231,58 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
             channel = getPropertyValue(CHANNEL);
             umPerStep = NumberUtils.displayStringToDouble(getPropertyValue(UMPERSTEP));
             save = getPropertyValue(SAVEIMGS_TEXT);
+            zScanMode = getPropertyValue(Z_SCAN_MODE_TEXT);
+            scanStopMargin = NumberUtils.displayStringToDouble(getPropertyValue(SCAN_STOP_MARGIN));
+            serpentine = getPropertyValue(SERPENTINE_TEXT);
+            zBacklash = NumberUtils.displayStringToDouble(getPropertyValue(Z_BACKLASH));
+            settleCalibration = getPropertyValue(SETTLE_CALIBRATION_TEXT);
+            autoRoi = getPropertyValue(AUTO_ROI_TEXT);
+            predictDrift = getPropertyValue(PREDICT_DRIFT_TEXT);
+            saveMode = getPropertyValue(SAVE_MODE_TEXT);
+            saveAround = (int) NumberUtils.displayStringToDouble(getPropertyValue(SAVE_AROUND));
+            saveBinning = getPropertyValue(SAVE_BINNING_TEXT);
+            saveCompression = getPropertyValue(SAVE_COMPRESSION_TEXT);
+            fullStackPeriod = (int) NumberUtils.displayStringToDouble(getPropertyValue(FULL_STACK_PERIOD));
+            scanBinning = getPropertyValue(SCAN_BINNING_TEXT);
+            autoTune = getPropertyValue(AUTO_TUNE_TEXT);
+            autoTuneTolerance = NumberUtils.displayStringToDouble(getPropertyValue(AUTO_TUNE_TOLERANCE));
+            singleSnap = getPropertyValue(SINGLE_SNAP_TEXT);
+            singleSnapCorrelation = NumberUtils.displayStringToDouble(getPropertyValue(SINGLE_SNAP_CORRELATION));
+            focusMapPeriod = (int) NumberUtils.displayStringToDouble(getPropertyValue(FOCUS_MAP_PERIOD));
+            overlapMoves = getPropertyValue(OVERLAP_MOVES_TEXT);
+            xyDeadband = NumberUtils.displayStringToDouble(getPropertyValue(XY_DEADBAND));
+            zDeadband = NumberUtils.displayStringToDouble(getPropertyValue(Z_DEADBAND));
+            budgetShare = NumberUtils.displayStringToDouble(getPropertyValue(BUDGET_SHARE));
+            tiledDetection = getPropertyValue(TILED_DETECTION_TEXT);
+            guidedMatching = getPropertyValue(GUIDED_MATCHING_TEXT);
+            regionColumns = (int) NumberUtils.displayStringToDouble(getPropertyValue(REGION_COLUMNS));
+            regionRows = (int) NumberUtils.displayStringToDouble(getPropertyValue(REGION_ROWS));
+            regionFocus = getPropertyValue(REGION_FOCUS_TEXT);
+            selectedRegion = (int) NumberUtils.displayStringToDouble(getPropertyValue(SELECTED_REGION));
         } catch (MMException | ParseException ex) {
-            studio_.logs().logError(ex);
+            ReportingUtils.logError(ex);
         }
     }
 
     @Override
     public double fullFocus() throws Exception {
-        long startTime = new Date().getTime();
+        long startTime = System.nanoTime();
+        timer.startCall();
+        DriftCorrection.loadOpenCV();
         applySettings();
-        Rectangle oldROI = studio_.core().getROI();
-        core_ = studio_.getCMMCore();
+        Rectangle oldROI = microscope_.getROI();
+        focusStage.setBacklash(zBacklash);
+        focusStage.setUseCalibration(settleCalibration.contentEquals("Yes"));
+        stageMotion.setOverlap(overlapMoves.contentEquals("Yes"));
+        stageMotion.setDeadbands(xyDeadband, zDeadband);
+        if (settleCalibration.contentEquals("Yes") && !focusStage.isCalibrated()) {
+            focusStage.calibrate(step, searchRange);
+        }
 
-        calibration = core_.getPixelSizeUm();
-        intervalInMin = (studio_.acquisitions().getAcquisitionSettings().intervalMs)/60000;
-        savingPath = studio_.acquisitions().getAcquisitionSettings().root + File.separator;
-        String prefix = studio_.acquisitions().getAcquisitionSettings().prefix;
+        calibration = microscope_.getPixelSizeUm();
+        intervalInMin = (microscope_.getAcquisitionSettings().intervalMs)/60000;
+        savingPath = microscope_.getAcquisitionSettings().root + File.separator;
+        String prefix = microscope_.getAcquisitionSettings().prefix;
 
         //ReportingUtils.logMessage("Original ROI: " + oldROI);
         int w = (int) (oldROI.width * cropFactor);
@@ -138,77 +292,144 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         Rectangle newROI = new Rectangle(x, y, w, h);
 
         //ReportingUtils.logMessage("Setting ROI to: " + newROI);
-        Configuration oldState = null;
+        Object oldState = null;
         if (channel.length() > 0) {
-            String chanGroup = core_.getChannelGroup();
-            oldState = core_.getConfigGroupState(chanGroup);
-            core_.setConfig(chanGroup, channel);
+            oldState = microscope_.getChannelGroupState();
+            microscope_.setChannel(channel);
         }
 
-        //Avoid wasting time on setting roi if it is the same
-        if (cropFactor < 1.0) {
-            studio_.app().setROI(newROI);
-            core_.waitForDevice(core_.getCameraDevice());
+        double oldExposure = microscope_.getExposure();
+        microscope_.setExposure(exposure);
+
+        boolean oldAutoShutterState = microscope_.getAutoShutter();
+        microscope_.setAutoShutter(false);
+        microscope_.setShutterOpen(true);
+
+        //Get the position of the list the acquisition engine moved to
+        double oldX = microscope_.getXPosition();
+        double oldY = microscope_.getYPosition();
+        PositionList positionList = microscope_.getPositionList();
+        positions.sync(positionList);
+        int position = positions.visit(oldX, oldY);
+        String label = positions.getLabel(position);
+        timepoint = positions.getTimepoint(position);
+        ReportingUtils.logMessage("Label Position : " + label + " at time point : " + timepoint);
+        //Every position gets the same share of the interval
+        latencyBudget.start(startTime, microscope_.getAcquisitionSettings().intervalMs * budgetShare / 100
+                / positions.size());
+        timer.setLabel(label);
+
+        //The automatic ROI of a position is chosen on the full frame of its first visit
+        boolean chooseFocusRoi = false;
+        if (cropFactor < 1.0 && autoRoi.contentEquals("Yes")) {
+            Rectangle focusRoi = positions.getFocusRoi(position);
+            if (focusRoi != null && oldROI.contains(focusRoi)) {
+                newROI = focusRoi;
+            } else {
+                chooseFocusRoi = true;
+            }
         }
 
-        double oldExposure = core_.getExposure();
-        core_.setExposure(exposure);
-
-        boolean oldAutoShutterState = core_.getAutoShutter();
-        core_.setAutoShutter(false);
-        core_.setShutterOpen(true);
-
-        //Get label of position
-        PositionList positionList = studio_.positions().getPositionList();
-        String label;
-        if (positionList.getNumberOfPositions() == 0){
-            label = positionList.generateLabel();
-        }else{
-            label = getLabelOfPositions(positionList);
+        //Avoid wasting time on setting roi if it is the same
+        if (cropFactor < 1.0 && !chooseFocusRoi) {
+            microscope_.setROI(newROI);
         }
-        ReportingUtils.logMessage("Label Position : " + label + " at time point : " + timepoint);
+        timer.lap(FocusTimer.Phase.SETUP, startTime);
 
-        //Incrementation of position counter; does not work at another place
-        positionIndex += 1;
-
-        double[] oldCorrectedPositions;
-        double oldX = core_.getXPosition();
-        double oldY = core_.getYPosition();
         double oldZ = getZPosition();
 
         //Define positions if it does not exist
-        if (!oldPositionsDict.containsKey(label)) {
-            double[] currentPositions = new double[3];
-            currentPositions[0] = oldX;
-            currentPositions[1] = oldY;
-            currentPositions[2] = oldZ;
-            oldPositionsDict.put(label, currentPositions);
+        if (!positions.isKnown(position)) {
+            positions.setXYZ(position, oldX, oldY, oldZ);
         } else {
             //Get old calculated X, Y and Z of a given position
-            oldCorrectedPositions = getXYZPosition(label);
-            oldX = oldCorrectedPositions[0];
-            oldY = oldCorrectedPositions[1];
-            oldZ = oldCorrectedPositions[2];
+            oldX = positions.getX(position);
+            oldY = positions.getY(position);
+            oldZ = positions.getZ(position);
+
+            //Or go directly to where the drift of the position is expected to have brought the sample
+            if (predictDrift.contentEquals("Yes") && driftPredictor.predict(position, timepoint, predictedPositions)) {
+                oldX = predictedPositions[0];
+                oldY = predictedPositions[1];
+                oldZ = predictedPositions[2];
+                ReportingUtils.logMessage("Predicted position : " + Arrays.toString(predictedPositions));
+            }
 
             //Set to the last good position calculated
-            setToLastCorrectedPosition(oldX, oldY, oldZ);
+            stageMotion.moveTo(oldX, oldY, oldZ);
+        }
+
+        //Narrow the search range when the drift of the position is well predicted
+        double range = searchRange;
+        double residual = driftPredictor.getZResidual(position);
+        if (predictDrift.contentEquals("Yes") && !Double.isNaN(residual)) {
+            range = Math.min(searchRange, Math.max(PREDICTED_RANGE_MIN_STEPS * step, PREDICTED_RANGE_RESIDUALS * residual));
+        }
+        //Or to the slices which fit in the time left
+        double affordableRange = latencyBudget.fitRange(range, step, xy_correction.contentEquals("Yes"));
+        boolean budgetLimited = affordableRange < range;
+        if (budgetLimited) {
+            ReportingUtils.logMessage("Latency budget : Z range reduced from " + range + " to " + affordableRange
+                    + " um, " + latencyBudget.getRemainingMs() + " ms left");
+            range = affordableRange;
         }
 
-        //Calculate Focus
-        double correctedZPosition = calculateZFocus(oldZ, label, timepoint, save.contentEquals("Yes"));
+        //Positions between the anchors of the focus map start from its surface
+        boolean anchor = isFocusMapAnchor(position);
+        double surfaceZ = anchor ? Double.NaN : focusSurface.predict(position);
+        if (!Double.isNaN(surfaceZ)) {
+            ReportingUtils.logMessage("Focus map Z Position : " + surfaceZ);
+            oldZ = surfaceZ;
+        }
+
+        //Estimate the focus from a snap compared with the reference stack of the position, or calculate it
+        double correctedZPosition = Double.NaN;
+        if (singleSnap.contentEquals("Yes") && positions.getReferenceStack(position) != null) {
+            correctedZPosition = estimateZFocus(oldZ, positions.getReferenceStack(position));
+        } else {
+            correctedZPosition = surfaceZ;
+        }
+        if (!Double.isNaN(correctedZPosition)) {
+            ReportingUtils.logMessage("Focus estimated without Z scan");
+        } else {
+            correctedZPosition = calculateZFocus(oldZ, range, position, timepoint, save.contentEquals("Yes"));
+            if (range < searchRange && Math.abs(correctedZPosition - oldZ) >= range / 2 - step / 2) {
+                if (budgetLimited) {
+                    ReportingUtils.logMessage("Latency budget : focus at the edge of the reduced range, kept");
+                } else {
+                    //Focus at the edge of the narrowed range : the prediction failed, search the whole range
+                    ReportingUtils.logMessage("Focus out of the predicted range of " + range + " um, searching again");
+                    correctedZPosition = calculateZFocus(oldZ, latencyBudget.fitRange(searchRange, step, false),
+                            position, timepoint, save.contentEquals("Yes"));
+                }
+            }
+        }
         ReportingUtils.logMessage("Corrected Z Position : " + correctedZPosition);
         //Set to the focus
         setZPosition(correctedZPosition + zOffset);
 
         //Get an image to define reference image, for each position
-        core_.waitForDevice(core_.getCameraDevice());
-        core_.snapImage();
-        TaggedImage taggedImagePosition = core_.getTaggedImage();
+        long phaseStart = System.nanoTime();
+        microscope_.waitForCamera();
+        microscope_.snapImage();
+        TaggedImage taggedImagePosition = microscope_.getTaggedImage();
+        phaseStart = timer.lap(FocusTimer.Phase.SNAP, phaseStart);
         Mat currentMat8Set = convertTo8BitsMat(taggedImagePosition);
+        if (chooseFocusRoi) {
+            Rectangle window = FocusRegion.findMostTexturedWindow(currentMat8Set, w, h);
+            positions.setFocusRoi(position,
+                    new Rectangle(oldROI.x + window.x, oldROI.y + window.y, window.width, window.height));
+            ReportingUtils.logMessage("Focus ROI of " + label + " : " + positions.getFocusRoi(position));
+            //Next snaps of this position use the focus ROI, so does its reference image
+            Mat fullFrameMat = currentMat8Set;
+            currentMat8Set = new Mat(fullFrameMat, new Rect(window.x, window.y, window.width, window.height)).clone();
+            fullFrameMat.release();
+        }
+        timer.lap(FocusTimer.Phase.METRIC, phaseStart);
 
         //Calculation of XY Drifts only if the parameter "Correct XY at same time" is set to Yes;
-        double currentXPosition = core_.getXPosition();
-        double currentYPosition = core_.getYPosition();
+        double currentXPosition = microscope_.getXPosition();
+        double currentYPosition = microscope_.getYPosition();
 
         double correctedXPosition = currentXPosition;
         double correctedYPosition = currentYPosition;
@@ -216,23 +437,37 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         double xCorrection = 0;
         double yCorrection = 0;
 
+        double[] drifts = new double[DriftCorrection.RESULT_SIZE];
         if (xy_correction.contentEquals("Yes")){
-            double[] drifts = new double[11];
             //Define current image as reference for the position if it does not exist
-            if (!refImageDict.containsKey(label)) {
-                refImageDict.put(label, currentMat8Set);
+            if (positions.getReferenceImage(position) == null) {
+                positions.setReferenceImage(position, currentMat8Set);
+                //The estimator of the run is chosen on its first reference image
+                if (autoTune.contentEquals("Yes") && tunedEstimator == null) {
+                    tuneDriftEstimator(currentMat8Set);
+                }
             } else {
                 //Or calculate XY drift
-                imgRef_Mat = refImageDict.get(label);
-                int detector = getFeatureDetectorIndex(detectorAlgo);
-                int matcher = getDescriptorExtractorIndex(matcherAlgo);
+                imgRef_Mat = positions.getReferenceImage(position);
+                boolean tuned = autoTune.contentEquals("Yes") && tunedEstimator != null;
+                int detector = getFeatureDetectorIndex(tuned ? tunedEstimator.detector : detectorAlgo);
+                int matcher = getDescriptorExtractorIndex(tuned ? tunedEstimator.extractor : matcherAlgo);
                 ReportingUtils.logMessage("FeatureDetector : " + detector);
 
-                //Get Correction to apply : 0-1 = x/y drifts; 3-4 = matcher size ; 5 = acquisition duration
-                drifts = calculateXYDrifts(currentMat8Set, detector, matcher, DescriptorMatcher.FLANNBASED,
+                //Get Correction to apply : see DriftCorrection indexes (x/y drifts, matcher sizes, durations)
+                drifts = calculateXYDrifts(position, currentMat8Set, detector, matcher, getDescriptorMatcher(),
                       oldROI, oldState, oldExposure, oldAutoShutterState, DriftCorrection.MEAN);
-                xCorrection = drifts[0];
-                yCorrection = drifts[1];
+                if (drifts.length < DriftCorrection.RESULT_SIZE) {
+                    drifts = new double[DriftCorrection.RESULT_SIZE];
+                }
+                timer.addMillis(FocusTimer.Phase.XY_DETECTION, drifts[DriftCorrection.DETECTION_DURATION]);
+                timer.addMillis(FocusTimer.Phase.XY_DESCRIPTION, drifts[DriftCorrection.DESCRIPTION_DURATION]);
+                timer.addMillis(FocusTimer.Phase.XY_MATCHING, drifts[DriftCorrection.MATCHING_DURATION]);
+                timer.addMillis(FocusTimer.Phase.XY_STATISTICS, drifts[DriftCorrection.STATISTICS_DURATION]);
+                ReportingUtils.logMessage("Native memory of the drift estimation in bytes : "
+                        + (long) drifts[DriftCorrection.NATIVE_BYTES]);
+                xCorrection = drifts[DriftCorrection.X_DRIFT];
+                yCorrection = drifts[DriftCorrection.Y_DRIFT];
                 if (Double.isNaN(xCorrection) || Double.isNaN(yCorrection)){
                     ReportingUtils.logError("Nan is found with algorithm : " + matcher + "_" + "detector "+ detector);
                     xCorrection = 0;
@@ -242,39 +477,59 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
                 correctedYPosition = currentYPosition + yCorrection;
 
             }
-            long endTime = new Date().getTime();
-            long acquisitionTimeElapsed = endTime - startTime;
-            ReportingUtils.logMessage("Acquisition duration in ms : " + acquisitionTimeElapsed);
-
-            writeOutput(acquisitionTimeElapsed, label, prefix, currentXPosition, correctedXPosition,
-                    currentYPosition, correctedYPosition, oldZ, correctedZPosition,
-                    drifts, intervalInMin);
-
-            setXYPosition(correctedXPosition, correctedYPosition);
 
             if (xCorrection != 0 && yCorrection != 0) {
                 //Reference image incremental
-                core_.waitForDevice(core_.getCameraDevice());
-                core_.snapImage();
-                TaggedImage newRefTaggedImage = core_.getTaggedImage();
+                stageMotion.moveXY(correctedXPosition, correctedYPosition);
+                phaseStart = System.nanoTime();
+                microscope_.waitForCamera();
+                microscope_.snapImage();
+                TaggedImage newRefTaggedImage = microscope_.getTaggedImage();
+                phaseStart = timer.lap(FocusTimer.Phase.SNAP, phaseStart);
                 Mat newRefMat = convertTo8BitsMat(newRefTaggedImage);
-                refImageDict.replace(label, newRefMat);
+                Mat oldRefMat = positions.setReferenceImage(position, newRefMat);
+                if (oldRefMat != null) {
+                    releaseAfterDriftJobs(oldRefMat);
+                }
+                timer.lap(FocusTimer.Phase.METRIC, phaseStart);
             }
         }
+        if (positions.getReferenceImage(position) != currentMat8Set) {
+            releaseAfterDriftJobs(currentMat8Set);
+        }
 
         //Reset conditions
+        phaseStart = System.nanoTime();
         resetInitialMicroscopeCondition(oldROI, oldState, oldExposure, oldAutoShutterState);
+        timer.lap(FocusTimer.Phase.RESTORE, phaseStart);
 
-        //Set to the focus
-        setZPosition(correctedZPosition);
+        //Set to the focus, along with the XY correction when no new reference image needed it earlier
+        stageMotion.moveTo(correctedXPosition, correctedYPosition, correctedZPosition);
 
-        //Refresh positions in position dictionary
-        refreshOldXYZposition(correctedXPosition, correctedYPosition, correctedZPosition, label);
-        if (positionList.getNumberOfPositions() == 0) {
-            timepoint++;
+        //Refresh the position and its history
+        positions.record(position, timepoint, correctedXPosition, correctedYPosition, correctedZPosition,
+                xCorrection, yCorrection);
+        if (focusMapPeriod > 0) {
+            focusSurface.record(position, correctedXPosition, correctedYPosition, correctedZPosition, anchor);
+        }
+
+        //Write statistics once every phase of this call has been timed
+        long acquisitionTimeElapsed = (System.nanoTime() - startTime) / 1000000;
+        ReportingUtils.logMessage("Acquisition duration in ms : " + acquisitionTimeElapsed);
+        if (xy_correction.contentEquals("Yes")) {
+            phaseStart = System.nanoTime();
+            writeOutput(savingPath, acquisitionTimeElapsed, label, prefix, currentXPosition, correctedXPosition,
+                    currentYPosition, correctedYPosition, oldZ, correctedZPosition,
+                    drifts, intervalInMin, timer.getCurrentCallMs());
+            timer.lap(FocusTimer.Phase.SAVE, phaseStart);
         }
-        if (!studio_.acquisitions().isAcquisitionRunning() ||
-                timepoint >= studio_.acquisitions().getAcquisitionSettings().numFrames){
+        timer.endCall();
+        ReportingUtils.logMessage("Phase durations in ms " + Arrays.toString(FocusTimer.columnNames())
+                + " : " + Arrays.toString(timer.getLastCallMs()));
+        ReportingUtils.logMessage("Redundant device calls skipped : " + microscope_.getSkippedCalls());
+        ReportingUtils.logMessage("Moves within the deadbands skipped : " + stageMotion.getSkippedMoves());
+        if (!microscope_.isAcquisitionRunning() ||
+                positions.getMinimumVisits() >= microscope_.getAcquisitionSettings().numFrames){
             resetParameters();
         }
 
@@ -284,15 +539,17 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
 
     //Methods
     private void resetParameters(){
-        refImageDict = new HashMap<>();
-        oldPositionsDict = new HashMap<>();
-        positionIndex = 0;
+        positions.clear();
+        tunedEstimator = null;
+        latencyBudget.clear();
+        //The tile workers are started again by the next tiled detection
+        TiledFeatures.shutdown();
         imageCount = 0;
         timepoint = 0;
         IJ.log("BF AutoFocus internal parameters have been reset");
     }
 
-    private int getFeatureDetectorIndex(String name){
+    static int getFeatureDetectorIndex(String name){
         int index = -1;
         switch (name){
             case "AKAZE":
@@ -304,13 +561,19 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
             case "BRISK":
                 index = FeatureDetector.BRISK;
                 break;
+            case DriftEstimatorTuner.PHASE_CORRELATION:
+                index = DriftCorrection.PHASE_CORRELATION;
+                break;
+            case DriftEstimatorTuner.PYRAMID:
+                index = DriftCorrection.PYRAMID;
+                break;
             default:
                 ReportingUtils.logError("Can not handle this algorithm name");
         }
         return index;
     }
 
-    private int getDescriptorExtractorIndex(String name){
+    static int getDescriptorExtractorIndex(String name){
         int index = -1;
         switch (name){
             case "AKAZE":
@@ -322,61 +585,51 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
             case "BRISK":
                 index = DescriptorExtractor.BRISK;
                 break;
+            case DriftEstimatorTuner.PHASE_CORRELATION:
+                index = DriftCorrection.PHASE_CORRELATION;
+                break;
+            case DriftEstimatorTuner.PYRAMID:
+                index = DriftCorrection.PYRAMID;
+                break;
             default:
                 ReportingUtils.logError("Can not handle this algorithm name");
         }
         return index;
     }
 
-    private void resetInitialMicroscopeCondition(Rectangle oldROI, Configuration oldState, double oldExposure, boolean oldAutoShutterState) throws Exception {
-        //Reinitialize origin ROI and all other parameters
-        core_.setAutoShutter(oldAutoShutterState);
-
+    private int getDescriptorMatcher() {
+        return guidedMatching.contentEquals("Yes") ? DriftCorrection.GUIDED_MATCHING : DescriptorMatcher.FLANNBASED;
+    }
 
-        if (cropFactor < 1.0) {
-            studio_.app().setROI(oldROI);
-            core_.waitForDevice(core_.getCameraDevice());
+    private void resetInitialMicroscopeCondition(Rectangle oldROI, Object oldState, double oldExposure, boolean oldAutoShutterState) throws Exception {
+        //Reinitialize origin ROI and all other parameters, only the ones changed by the autofocus are sent back
+        if (microscope_.getAutoShutter() != oldAutoShutterState) {
+            microscope_.setAutoShutter(oldAutoShutterState);
         }
 
-        if (oldState != null) {
-            core_.setSystemState(oldState);
+        if (cropFactor < 1.0 && !oldROI.equals(microscope_.getROI())) {
+            microscope_.setROI(oldROI);
         }
-        core_.setExposure(oldExposure);
-    }
 
-    private String getLabelOfPositions(PositionList positionList) {
-        if (positionIndex == positionList.getNumberOfPositions() ) {
-            positionIndex = 0;
-            timepoint++;
+        if (oldState != null && !oldState.equals(microscope_.getCurrentChannel())) {
+            microscope_.restoreChannelGroupState(oldState);
+        }
+        if (microscope_.getExposure() != oldExposure) {
+            microscope_.setExposure(oldExposure);
         }
-        return positionList.getPosition(positionIndex).getLabel();
-    }
-
-    //XYZ-Methods
-    private double[] getXYZPosition(String label) {
-        return oldPositionsDict.get(label);
-    }
-
-    private void refreshOldXYZposition(double correctedXPosition, double correctedYPosition, double correctedZPosition, String label) {
-        double[] refreshedXYZposition = new double[3];
-        refreshedXYZposition[0] = correctedXPosition;
-        refreshedXYZposition[1] = correctedYPosition;
-        refreshedXYZposition[2] = correctedZPosition;
-        oldPositionsDict.replace(label, refreshedXYZposition);
     }
 
-    private void setToLastCorrectedPosition(double oldX, double oldY, double oldZ) throws Exception {
-        setXYPosition(oldX, oldY);
-        setZPosition(oldZ);
+    //Every focusMapPeriod-th position of the list is an anchor of the focus map, scanned at every time point
+    private boolean isFocusMapAnchor(int position) {
+        return focusMapPeriod <= 0 || position % focusMapPeriod == 0;
     }
 
     //Z-Methods
     private double getZPosition() throws Exception {
-        String focusDevice = core_.getFocusDevice();
-        return core_.getPosition(focusDevice);
+        return microscope_.getZPosition();
     }
 
-    private static int getZfocus (double[] stdArray){
+    static int getZfocus (double[] stdArray){
         double min = Double.MAX_VALUE;
         int maxIdx = Integer.MAX_VALUE;
         for (int i = 0; i < stdArray.length; i++){
@@ -388,17 +641,6 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         return maxIdx;
     }
 
-    private void showImage(TaggedImage currentImg) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                studio_.live().displayImage(studio_.data().convertTaggedImage(currentImg));
-            }
-            catch (JSONException | IllegalArgumentException e) {
-                studio_.logs().showError(e);
-            }
-        });
-    }
-
     public static double[] calculateZPositions(double searchRange, double step, double startZUm){
         double lower = startZUm - searchRange/2;
         int nstep  = new Double(searchRange/step).intValue() + 1;
@@ -409,7 +651,7 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         return zpos;
     }
 
-    private static double optimizeZFocus(int rawZidx, double[] stdArray, double[] zpositionArray){
+    static double optimizeZFocus(int rawZidx, double[] stdArray, double[] zpositionArray){
         if (rawZidx == zpositionArray.length-1 || rawZidx == 0){
             return zpositionArray[rawZidx];
         }
@@ -426,62 +668,326 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         }
     }
 
-    private double calculateZFocus(double oldZ, String positionLabel, int timepoint, boolean save) throws Exception {
-        double[] zpositions = calculateZPositions(searchRange, step, oldZ);
-        double[] stdAtZPositions = new double[zpositions.length];
+    private double calculateZFocus(double oldZ, double range, int position, int timepoint, boolean save) throws Exception {
+        String positionLabel = positions.getLabel(position);
+        double[] zpositions = calculateZPositions(range, step, oldZ);
+        if (zScanMode.contentEquals(ZScan.SWEEP)) {
+            double focus = sweepZFocus(zpositions, positionLabel, save);
+            if (!Double.isNaN(focus)) {
+                return focus;
+            }
+            ReportingUtils.logMessage("Too few frames during the Z sweep, scanning slice by slice");
+        }
         TaggedImage currentImg;
         Datastore store = null;
+        StackRetention retention = null;
+        //Only complete, unbinned and uncompressed stacks are streamed to a Micro-Manager datastore
+        boolean periodicFullStack = fullStackPeriod > 0 && timepoint % fullStackPeriod == 0;
+        if (save && !periodicFullStack && (!saveMode.contentEquals(StackRetention.FULL_STACK)
+                || !saveBinning.contentEquals("1") || saveCompression.contentEquals("Yes"))) {
+            retention = new StackRetention(saveMode, saveAround, Integer.parseInt(saveBinning));
+            save = false;
+        }
+        //Planes are written in the order of acquisition and read back as the ascending grid of the whole search range
+        if (save && !scansWholeGridUpwards(range)) {
+            ReportingUtils.logMessage("Only full ascending scans of the whole range are saved, " + positionLabel
+                    + " stack not kept");
+            save = false;
+        }
         if (save){
-            store = studio_.data().createMultipageTIFFDatastore(
-                    savingPath + File.separator + positionLabel + "_T" + String.valueOf(timepoint),
-                    false,false);
+            long phaseStart = System.nanoTime();
+            store = microscope_.createStackStore(
+                    savingPath + File.separator + positionLabel + "_T" + String.valueOf(timepoint));
+            if (store == null) {
+                ReportingUtils.logMessage("Images can not be saved with this microscope");
+                save = false;
+            }
+            timer.lap(FocusTimer.Phase.SAVE, phaseStart);
         }
 
-        for (int i =0; i< zpositions.length ;i++){
-            setZPosition(zpositions[i]);
-            core_.waitForDevice(core_.getCameraDevice());
-            core_.snapImage();
-            currentImg = core_.getTaggedImage();
+        int fullQualityBinning = getFullQualityBinning();
+        Rectangle fullQualityROI = microscope_.getROI();
+        applyScanProfile(fullQualityBinning, fullQualityROI);
+
+        //The slices of a scan of the whole grid of the search range become the reference stack of the position
+        ReferenceStack reference = singleSnap.contentEquals("Yes") ? new ReferenceStack(microscope_.getROI().width,
+                microscope_.getROI().height) : null;
+
+        //Slices are acquired in the order given by the scan mode, which may stop before the end of the grid
+        //With a serpentine scan, every other scan runs downwards so that it starts where the previous one ended
+        //The regions of a grid are measured on the same slices as the whole field
+        RegionFocus regions = regionColumns * regionRows > 1 ? new RegionFocus(regionColumns, regionRows,
+                zpositions.length, fullQualityROI.width * calibration, fullQualityROI.height * calibration) : null;
+        ZScan scan = new ZScan(zpositions.length, (int) Math.round(range / 2 / step), zScanMode, scanStopMargin,
+                descendingScan);
+        if (serpentine.contentEquals("Yes")) {
+            descendingScan = !descendingScan;
+        }
+        long scanStart = System.nanoTime();
+        for (int i = scan.next(); i >= 0; i = scan.next()){
+            if (scan.getNumberOfAcquiredSlices() == 0) {
+                focusStage.approach(zpositions[i], scan.getDirection() == 0 ? 1 : scan.getDirection());
+            } else if (scan.getDirection() == 0) {
+                focusStage.moveTo(zpositions[i]);
+            } else {
+                focusStage.step(zpositions[i]);
+            }
+            long phaseStart = System.nanoTime();
+            microscope_.waitForCamera();
+            microscope_.snapImage();
+            currentImg = microscope_.getTaggedImage();
+            phaseStart = timer.lap(FocusTimer.Phase.SNAP, phaseStart);
             imageCount++;
-            Coords.CoordsBuilder builder = studio_.data().getCoordsBuilder().z(i).channel(0).stagePosition(0).time(timepoint);
-            Image img = studio_.data().convertTaggedImage(currentImg, builder.build(), null);
             if (save){
-                assert store != null;
-                store.putImage(img);
+                store.putImage(microscope_.convertImage(currentImg, i, timepoint));
+                phaseStart = timer.lap(FocusTimer.Phase.SAVE, phaseStart);
+            }
+            ImageProcessor processor = ImageUtils.makeProcessor(currentImg);
+            double metric = regions != null ? regions.add(i, processor) : processor.getStatistics().stdDev;
+            scan.record(i, metric);
+            phaseStart = timer.lap(FocusTimer.Phase.METRIC, phaseStart);
+            if (retention != null) {
+                retention.add(i, zpositions[i], processor, metric);
+                phaseStart = timer.lap(FocusTimer.Phase.SAVE, phaseStart);
+            }
+            if (reference != null) {
+                reference.add(processor, zpositions[i]);
+                timer.lap(FocusTimer.Phase.METRIC, phaseStart);
             }
-            stdAtZPositions[i] = studio_.data().ij().createProcessor(img).getStatistics().stdDev;
             if (show.contentEquals("Yes")) {
-                showImage(currentImg);
+                microscope_.displayImage(currentImg);
             }
         }
+        latencyBudget.recordScan(scan.getNumberOfAcquiredSlices(), DriftCorrection.toMs(System.nanoTime() - scanStart));
 
         if (save) {
+            long phaseStart = System.nanoTime();
             store.freeze();
             store.close();
-            studio_.core().clearCircularBuffer();
+            microscope_.clearCircularBuffer();
+            timer.lap(FocusTimer.Phase.SAVE, phaseStart);
         }
+        if (retention != null) {
+            long phaseStart = System.nanoTime();
+            retention.save(savingPath + File.separator + positionLabel + "_T" + String.valueOf(timepoint),
+                    saveCompression.contentEquals("Yes"));
+            timer.lap(FocusTimer.Phase.SAVE, phaseStart);
+        }
+
+        restoreFullQualityProfile(fullQualityBinning, fullQualityROI);
 
+        ReportingUtils.logMessage(scan.getNumberOfAcquiredSlices() + " slices acquired out of " + zpositions.length);
+        double[] stdAtZPositions = scan.getAcquiredMetric();
+        double[] acquiredZPositions = Arrays.copyOfRange(zpositions, scan.getFirstIndex(), scan.getLastIndex() + 1);
         int rawIndex = getZfocus(stdAtZPositions);
-        return optimizeZFocus(rawIndex, stdAtZPositions, zpositions);
+        double focus = optimizeZFocus(rawIndex, stdAtZPositions, acquiredZPositions);
+        if (regions != null) {
+            focus = getRegionFocus(regions, zpositions, scan.getFirstIndex(), scan.getLastIndex(), focus,
+                    positionLabel);
+        }
+        if (reference != null) {
+            if (range >= searchRange && scan.getNumberOfAcquiredSlices() == zpositions.length) {
+                reference.setFocus(focus);
+                positions.setReferenceStack(position, reference);
+            } else {
+                ReportingUtils.logMessage("Scan of " + positionLabel + " not complete, reference stack not replaced");
+            }
+        }
+        return focus;
+    }
+
+    //Slices of the scan are acquired one after the other from the bottom to the top of the whole search range
+    private boolean scansWholeGridUpwards(double range) {
+        boolean fullScan = zScanMode.contentEquals(ZScan.FULL) || zScanMode.contentEquals(ZScan.SWEEP);
+        return fullScan && !descendingScan && range >= searchRange;
+    }
+
+    //Focus of the mode of the region grid once the regions are measured, the focus of the whole field if they give none
+    private double getRegionFocus(RegionFocus regions, double[] zpositions, int first, int last, double fieldFocus,
+                                  String positionLabel) {
+        ReportingUtils.logMessage("Focus of the regions : " + Arrays.toString(regions.getFoci(zpositions, first, last)));
+        double[] tilt = regions.getTilt();
+        ReportingUtils.logMessage("Tilt of " + positionLabel + " (um/um) : " + tilt[0] + ", " + tilt[1]);
+        double regionZ = regions.getFocus(regionFocus, selectedRegion);
+        if (!Double.isNaN(regionZ)) {
+            return regionZ;
+        }
+        if (!regionFocus.contentEquals(RegionFocus.WHOLE_FIELD)) {
+            ReportingUtils.logMessage("No focus from the regions, focus of the whole field kept");
+        }
+        return fieldFocus;
+    }
+
+    //Focus from the frames streamed during one move across the Z positions, NaN if too few of them have a frame
+    //The regions of a grid are measured on the same frames ; frames are neither saved nor kept as reference stack
+    //since they are taken while the stage moves
+    private double sweepZFocus(double[] zpositions, String positionLabel, boolean save) throws Exception {
+        if (save) {
+            ReportingUtils.logMessage("Frames of a Z sweep are not saved, " + positionLabel + " stack not kept");
+        }
+        if (singleSnap.contentEquals("Yes")) {
+            ReportingUtils.logMessage("Frames of a Z sweep are not kept as reference stack of " + positionLabel);
+        }
+        int fullQualityBinning = getFullQualityBinning();
+        Rectangle fullQualityROI = microscope_.getROI();
+        applyScanProfile(fullQualityBinning, fullQualityROI);
+        RegionFocus regions = regionColumns * regionRows > 1 ? new RegionFocus(regionColumns, regionRows,
+                zpositions.length, fullQualityROI.width * calibration, fullQualityROI.height * calibration) : null;
+
+        //With a serpentine scan, every other sweep runs downwards so that it starts where the previous one ended
+        int direction = descendingScan ? -1 : 1;
+        if (serpentine.contentEquals("Yes")) {
+            descendingScan = !descendingScan;
+        }
+        double start = direction > 0 ? zpositions[0] : zpositions[zpositions.length - 1];
+        double end = direction > 0 ? zpositions[zpositions.length - 1] : zpositions[0];
+        focusStage.approach(start, direction);
+        ZSweep sweep = new ZSweep(microscope_);
+        double[] metricMs = new double[1];
+        sweep.run(end, image -> {
+            long phaseStart = System.nanoTime();
+            ImageProcessor processor = ImageUtils.makeProcessor(image);
+            double[] metric = regions != null ? regions.measure(processor)
+                    : new double[]{processor.getStatistics().stdDev};
+            metricMs[0] += DriftCorrection.toMs(System.nanoTime() - phaseStart);
+            if (show.contentEquals("Yes")) {
+                microscope_.displayImage(image);
+            }
+            return metric;
+        });
+        timer.addMillis(FocusTimer.Phase.SNAP, sweep.getDurationMs() - metricMs[0]);
+        timer.addMillis(FocusTimer.Phase.METRIC, metricMs[0]);
+        imageCount += sweep.getNumberOfFrames();
+        latencyBudget.recordScan(zpositions.length, sweep.getDurationMs());
+
+        restoreFullQualityProfile(fullQualityBinning, fullQualityROI);
+
+        double[] metric = sweep.getMetric(zpositions);
+        int covered = (int) Arrays.stream(metric).filter(value -> !Double.isNaN(value)).count();
+        ReportingUtils.logMessage(sweep.getNumberOfFrames() + " frames acquired in " + sweep.getDurationMs()
+                + " ms of Z sweep, " + covered + " slices out of " + zpositions.length + " covered");
+        if (covered < LatencyBudget.MIN_SLICES) {
+            return Double.NaN;
+        }
+        double focus = optimizeZFocus(getZfocus(metric), metric, zpositions);
+        if (regions != null) {
+            for (int region = 0; region < regions.getNumberOfRegions(); region++) {
+                regions.setMetric(region, sweep.getMetric(zpositions, region + 1));
+            }
+            focus = getRegionFocus(regions, zpositions, 0, zpositions.length - 1, focus, positionLabel);
+        }
+        return focus;
+    }
+
+    //Focus from one snap at the expected focus, checked by a second snap at the estimated one ; NaN when the snaps
+    //do not match the reference stack well enough. Snaps are taken at the Z offset, like the XY reference images,
+    //since bright-field images have little texture at focus
+    private double estimateZFocus(double oldZ, ReferenceStack reference) throws Exception {
+        int fullQualityBinning = getFullQualityBinning();
+        Rectangle fullQualityROI = microscope_.getROI();
+        applyScanProfile(fullQualityBinning, fullQualityROI);
+        double focus = Double.NaN;
+        double[] match = snapAndMatch(oldZ + zOffset, reference);
+        if (match != null && match[1] >= singleSnapCorrelation) {
+            double estimate = oldZ + zOffset - match[0];
+            double[] check = snapAndMatch(estimate + zOffset, reference);
+            //The check snap must land within a slice of where the estimate puts it
+            if (check != null && check[1] >= singleSnapCorrelation && Math.abs(check[0] - zOffset) <= step) {
+                focus = estimate + zOffset - check[0];
+            }
+        }
+        restoreFullQualityProfile(fullQualityBinning, fullQualityROI);
+        return focus;
+    }
+
+    private double[] snapAndMatch(double z, ReferenceStack reference) throws Exception {
+        setZPosition(z);
+        long phaseStart = System.nanoTime();
+        microscope_.waitForCamera();
+        microscope_.snapImage();
+        TaggedImage image = microscope_.getTaggedImage();
+        phaseStart = timer.lap(FocusTimer.Phase.SNAP, phaseStart);
+        imageCount++;
+        double[] match = reference.match(ImageUtils.makeProcessor(image));
+        timer.lap(FocusTimer.Phase.METRIC, phaseStart);
+        if (match != null) {
+            ReportingUtils.logMessage("Snap at " + z + " um is " + match[0] + " um from focus, correlation " + match[1]);
+        }
+        return match;
+    }
+
+    //Fast scan profile : the metric only needs relative contrast, binned slices are read out faster
+    //The camera binning is only read when the scan may bin more
+    private int getFullQualityBinning() throws Exception {
+        return Integer.parseInt(scanBinning) > 1 ? microscope_.getBinning() : 1;
+    }
+
+    private void applyScanProfile(int fullQualityBinning, Rectangle fullQualityROI) throws Exception {
+        int scanBinningFactor = Integer.parseInt(scanBinning);
+        if (scanBinningFactor > fullQualityBinning) {
+            long phaseStart = System.nanoTime();
+            setCameraProfile(scanBinningFactor, fullQualityBinning, fullQualityROI,
+                    exposure * fullQualityBinning * fullQualityBinning / (scanBinningFactor * scanBinningFactor));
+            timer.lap(FocusTimer.Phase.SETUP, phaseStart);
+        }
+    }
+
+    //The reference snap is taken with the full-quality settings
+    private void restoreFullQualityProfile(int fullQualityBinning, Rectangle fullQualityROI) throws Exception {
+        if (Integer.parseInt(scanBinning) > fullQualityBinning) {
+            long phaseStart = System.nanoTime();
+            setCameraProfile(fullQualityBinning, fullQualityBinning, fullQualityROI, exposure);
+            timer.lap(FocusTimer.Phase.RESTORE, phaseStart);
+        }
+    }
+
+    //Apply a binning, the ROI given at another binning, and the exposure
+    private void setCameraProfile(int binning, int roiBinning, Rectangle roi, double exposure) throws Exception {
+        microscope_.setBinning(binning);
+        Rectangle binnedROI = new Rectangle(roi.x * roiBinning / binning, roi.y * roiBinning / binning,
+                roi.width * roiBinning / binning, roi.height * roiBinning / binning);
+        if (!binnedROI.equals(microscope_.getROI())) {
+            microscope_.setROI(binnedROI);
+        }
+        microscope_.setExposure(exposure);
     }
 
     private void setZPosition(double z) throws Exception {
-        String focusDevice = core_.getFocusDevice();
-        core_.setPosition(focusDevice, z);
-        core_.waitForDevice(focusDevice);
+        stageMotion.moveZ(z);
     }
 
     //XY-Methods
-    private double[] calculateXYDrifts(Mat currentImgMat, Integer detectorAlgo,
+    private double[] calculateXYDrifts(int position, Mat currentImgMat, Integer detectorAlgo,
                                        Integer descriptorExtractor, Integer descriptorMatcher,
-                                       Rectangle oldROI, Configuration oldState,
+                                       Rectangle oldROI, Object oldState,
                                        double oldExposure, boolean oldAutoShutterState, int flag) {
-        ExecutorService es = Executors.newSingleThreadExecutor();
-        Future job = es.submit(new ThreadAttribution(imgRef_Mat, currentImgMat, calibration,
-                intervalInMin, umPerStep, detectorAlgo, descriptorExtractor, descriptorMatcher, flag));
+        //A deferred estimation is made at the next time point, against the same reference image
+        int deferrals = positions.getXYDeferrals(position);
+        if (!latencyBudget.fitsXY(deferrals)) {
+            positions.setXYDeferrals(position, deferrals + 1);
+            ReportingUtils.logMessage("Latency budget : XY drift estimation deferred, "
+                    + latencyBudget.getRemainingMs() + " ms left");
+            return new double[0];
+        }
+        long startTime = System.nanoTime();
+        Future job = getDriftExecutor().submit(new ThreadAttribution(imgRef_Mat, currentImgMat, calibration,
+                intervalInMin, umPerStep, detectorAlgo, descriptorExtractor, descriptorMatcher, flag,
+                tiledDetection.contentEquals("Yes")));
         double[] xyDrifts = new double[0];
         try {
-            xyDrifts = (double[]) job.get();
+            if (latencyBudget.isLimited() && !latencyBudget.isXYForced(deferrals)) {
+                xyDrifts = (double[]) job.get(Math.max(1, (long) latencyBudget.getRemainingMs()), TimeUnit.MILLISECONDS);
+            } else {
+                xyDrifts = (double[]) job.get();
+            }
+            latencyBudget.recordXY(DriftCorrection.toMs(System.nanoTime() - startTime));
+            positions.setXYDeferrals(position, 0);
+        } catch (TimeoutException e) {
+            job.cancel(true);
+            latencyBudget.recordXYTimeout(DriftCorrection.toMs(System.nanoTime() - startTime));
+            positions.setXYDeferrals(position, deferrals + 1);
+            ReportingUtils.logMessage("Latency budget : XY drift estimation deferred after "
+                    + DriftCorrection.toMs(System.nanoTime() - startTime) + " ms");
         } catch (InterruptedException | ExecutionException e) {
             try {
                 resetInitialMicroscopeCondition(oldROI, oldState, oldExposure, oldAutoShutterState);
@@ -489,48 +995,174 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
                 e1.printStackTrace();
             }
         }
-        es.shutdown();
+        return xyDrifts;
+    }
+
+    private void tuneDriftEstimator(Mat reference) throws Exception {
+        long startTime = System.nanoTime();
+        tunedEstimator = getDriftExecutor().submit(() -> DriftEstimatorTuner.tune(reference, calibration,
+                intervalInMin, umPerStep, autoTuneTolerance, getDescriptorMatcher(),
+                tiledDetection.contentEquals("Yes"))).get();
+        if (tunedEstimator == null) {
+            ReportingUtils.logMessage("No drift estimator within " + autoTuneTolerance + " um, keeping "
+                    + detectorAlgo + "/" + matcherAlgo);
+            tunedEstimator = new DriftEstimatorTuner.Candidate(detectorAlgo, matcherAlgo);
+        } else {
+            ReportingUtils.logMessage("Drift estimator selected for the run : " + tunedEstimator);
+        }
+        ReportingUtils.logMessage("Drift estimator selection took " + (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    //Release a mat once the drift jobs already submitted, which may still use it (e.g. after a timeout), are done
+    private void releaseAfterDriftJobs(Mat mat) {
+        getDriftExecutor().submit(mat::release);
+    }
+
+    //Drift is always computed on the same thread, which keeps its OpenCV algorithms between calls
+    private synchronized ExecutorService getDriftExecutor() {
+        if (driftExecutor == null) {
+            driftExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "BFAutofocus drift correction");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return driftExecutor;
+    }
+
+    //The cached settings of the microscope follow the changes reported by the system
+    @Subscribe
+    public void onSystemConfigurationLoaded(SystemConfigurationLoadedEvent event) {
+        microscope_.invalidate();
+    }
+
+    @Subscribe
+    public void onPropertiesChanged(PropertiesChangedEvent event) {
+        microscope_.invalidate();
+    }
+
+    @Subscribe
+    public void onPropertyChanged(PropertyChangedEvent event) {
+        microscope_.onPropertyChanged(event.getProperty(), event.getValue());
+    }
+
+    @Subscribe
+    public void onConfigGroupChanged(ConfigGroupChangedEvent event) {
+        microscope_.onConfigGroupChanged(event.getGroupName(), event.getNewConfig());
+    }
+
+    @Subscribe
+    public void onExposureChanged(ExposureChangedEvent event) {
+        microscope_.onExposureChanged(event.getNewExposureTime());
+    }
+
+    @Subscribe
+    public void onAutoShutterChanged(AutoShutterEvent event) {
+        microscope_.onAutoShutterChanged(event.getAutoShutter());
+    }
+
+    @Subscribe
+    public void onShutterChanged(ShutterEvent event) {
+        microscope_.onShutterChanged(event.getShutter());
+    }
+
+    //Warm-up methods
+    @Subscribe
+    public void onAcquisitionStarted(AcquisitionStartedEvent event) {
+        microscope_.invalidate();
         try {
-            es.awaitTermination(1, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            warmUp();
+        } catch (Exception e) {
+            ReportingUtils.logError(e, "BFAutofocus warm-up failed");
         }
-        return xyDrifts;
     }
 
-    private void setXYPosition(double x, double y) throws Exception {
-        assert x != 0;
-        assert y != 0;
-        String xyDevice = core_.getXYStageDevice();
-        core_.setXYPosition(x,y);
-        core_.waitForDevice(xyDevice);
+    //Load the natives, then run the focus metric and the drift correction once on synthetic frames of the size of
+    //the focus ROI, so that the first position of the acquisition does not pay for the JIT and the OpenCV set up
+    public void warmUp() throws Exception {
+        long startTime = System.nanoTime();
+        applySettings();
+        DriftCorrection.loadOpenCV();
+        Rectangle roi = microscope_.getROI();
+        int width = Math.max(1, (int) (roi.width * cropFactor));
+        int height = Math.max(1, (int) (roi.height * cropFactor));
+        short[] reference = syntheticFrame(width, height, 0);
+        short[] shifted = syntheticFrame(width, height, WARM_UP_SHIFT);
+        new ShortProcessor(width, height, reference, null).getStatistics();
+        Mat referenceMat = convertTo8BitsMat(width, height, reference);
+        Mat shiftedMat = convertTo8BitsMat(width, height, shifted);
+        getDriftExecutor().submit(new ThreadAttribution(referenceMat, shiftedMat, 1, 1, umPerStep,
+                getFeatureDetectorIndex(detectorAlgo), getDescriptorExtractorIndex(matcherAlgo),
+                getDescriptorMatcher(), DriftCorrection.MEAN, tiledDetection.contentEquals("Yes"))).get();
+        referenceMat.release();
+        shiftedMat.release();
+        ReportingUtils.logMessage("BFAutofocus warm-up on " + width + "x" + height + " frames done in "
+                + (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    //Random blocks of WARM_UP_BLOCK pixels, translated by shift pixels, so that the detectors find corners
+    private static short[] syntheticFrame(int width, int height, int shift) {
+        int blocksX = width / WARM_UP_BLOCK + 2;
+        int blocksY = height / WARM_UP_BLOCK + 2;
+        Random random = new Random(0);
+        int[] blocks = new int[blocksX * blocksY];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = random.nextInt(4096);
+        }
+        short[] pixels = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int block = ((y + shift) / WARM_UP_BLOCK) * blocksX + (x + shift) / WARM_UP_BLOCK;
+                pixels[y * width + x] = (short) blocks[block];
+            }
+        }
+        return pixels;
     }
 
     //Convert MM TaggedImage to OpenCV Mat
     private static Mat convertToMat(TaggedImage img) throws JSONException {
         int width = img.tags.getInt("Width");
         int height = img.tags.getInt("Height");
+        return convertToMat(width, height, (short[]) img.pix);
+    }
+
+    private static Mat convertToMat(int width, int height, short[] pixels) {
         Mat mat = new Mat(height, width, CvType.CV_16UC1);
-        mat.put(0,0, (short[]) img.pix);
+        mat.put(0,0, pixels);
         return mat;
     }
 
-    //Convert MM TaggedImage to OpenCV 8 bits Mat
+    //Convert MM TaggedImage to OpenCV 8 bits Mat, the intermediate mats are released
     private static Mat convertTo8BitsMat(TaggedImage taggedImage) throws JSONException {
-        Mat mat16 = convertToMat(taggedImage);
-        Mat mat8 = new Mat(mat16.cols(), mat16.rows(), CvType.CV_8UC1);
-        Core.MinMaxLocResult minMaxResult = Core.minMaxLoc(mat16);
-        double min = minMaxResult.minVal;
-        double max = minMaxResult.maxVal;
-        mat16.convertTo(mat8, CvType.CV_8UC1, 255/(max-min));
-        return DriftCorrection.equalizeImages(mat8);
+        try (MatScope scope = new MatScope()) {
+            return convertTo8BitsMat(scope.track(convertToMat(taggedImage)));
+        }
+    }
+
+    static Mat convertTo8BitsMat(int width, int height, short[] pixels) {
+        try (MatScope scope = new MatScope()) {
+            return convertTo8BitsMat(scope.track(convertToMat(width, height, pixels)));
+        }
+    }
+
+    private static Mat convertTo8BitsMat(Mat mat16) {
+        try (MatScope scope = new MatScope()) {
+            Mat mat8 = scope.track(new Mat());
+            Core.MinMaxLocResult minMaxResult = Core.minMaxLoc(mat16);
+            double min = minMaxResult.minVal;
+            double max = minMaxResult.maxVal;
+            mat16.convertTo(mat8, CvType.CV_8UC1, 255/(max-min));
+            return DriftCorrection.equalizeImages(mat8);
+        }
     }
 
     //Write output file
-    private void writeOutput(long acquisitionDuration, String label, String prefix, double currentXPosition, double correctedXPosition,
-                             double currentYPosition, double correctedYPosition,
-                             double currentZPosition, double correctedZPosition, double[] xyDrifts, double intervalInMin_) throws IOException {
+    static void writeOutput(String savingPath, long acquisitionDuration, String label, String prefix, double currentXPosition, double correctedXPosition,
+                            double currentYPosition, double correctedYPosition,
+                            double currentZPosition, double correctedZPosition, double[] xyDrifts, double intervalInMin_,
+                            double[] phaseDurations) throws IOException {
 
+        //A new file gets the header, followed by the row of this call
         File f1 = new File(savingPath + prefix + "_Stats_" + label + ".csv");
         if (!f1.exists()) {
             boolean wrote = f1.createNewFile();
@@ -555,47 +1187,58 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
 
                 };
 
-                fw.write(String.join(",", headersOfFile) + System.lineSeparator());
+                fw.write(String.join(",", headersOfFile) + ","
+                        + String.join(",", FocusTimer.columnNames()) + System.lineSeparator());
                 fw.close();
             }else{
                 ReportingUtils.logError("Can not create new file");
+                return;
             }
+        }
 
-        } else {
-            double meanXdisplacement = xyDrifts[0];
-            double meanYdisplacement = xyDrifts[1];
-            double numberOfMatches = xyDrifts[2];
-            double numberOfGoodMatches = xyDrifts[3];
-            double algorithmDuration = xyDrifts[4];
-            double medianXDisplacement = xyDrifts[0];
-            double medianYDisplacement = xyDrifts[1];
-            double minXDisplacement = xyDrifts[0];
-            double minYDisplacement = xyDrifts[1];
-            double modeXDisplacement = xyDrifts[0];
-            double modeYDisplacement = xyDrifts[1];
+        double meanXdisplacement = xyDrifts[DriftCorrection.X_DRIFT];
+        double meanYdisplacement = xyDrifts[DriftCorrection.Y_DRIFT];
+        double numberOfMatches = xyDrifts[DriftCorrection.NUMBER_OF_MATCHES];
+        double numberOfGoodMatches = xyDrifts[DriftCorrection.NUMBER_OF_GOOD_MATCHES];
+        double algorithmDuration = xyDrifts[DriftCorrection.ALGORITHM_DURATION];
+        double medianXDisplacement = xyDrifts[0];
+        double medianYDisplacement = xyDrifts[1];
+        double minXDisplacement = xyDrifts[0];
+        double minYDisplacement = xyDrifts[1];
+        double modeXDisplacement = xyDrifts[0];
+        double modeYDisplacement = xyDrifts[1];
+
+        FileWriter fw1 = new FileWriter(f1, true);
+        fw1.write(currentXPosition + "," + correctedXPosition + ","
 
-            FileWriter fw1 = new FileWriter(f1, true);
-            fw1.write(currentXPosition + "," + correctedXPosition + ","
+                + currentYPosition + "," + correctedYPosition + ","
 
-                    + currentYPosition + "," + correctedYPosition + ","
+                + currentZPosition + "," + correctedZPosition  + ","
 
-                    + currentZPosition + "," + correctedZPosition  + ","
+                + meanXdisplacement + "," + meanYdisplacement + ","
 
-                    + meanXdisplacement + "," + meanYdisplacement + ","
+                + medianXDisplacement + "," + medianYDisplacement + ","
 
-                    + medianXDisplacement + "," + medianYDisplacement + ","
+                + minXDisplacement + "," + minYDisplacement + ","
 
-                    + minXDisplacement + "," + minYDisplacement + ","
+                + modeXDisplacement + "," + modeYDisplacement + ","
 
-                    + modeXDisplacement + "," + modeYDisplacement + ","
+                + numberOfMatches + "," + numberOfGoodMatches + ","
 
-                    + numberOfMatches + "," + numberOfGoodMatches + ","
+                + algorithmDuration + "," + acquisitionDuration + "," + intervalInMin_
 
-                    + algorithmDuration + "," + acquisitionDuration + "," + intervalInMin_
+                + phaseDurationsToCsv(phaseDurations)
 
-                    + System.lineSeparator());
-            fw1.close();
+                + System.lineSeparator());
+        fw1.close();
+    }
+
+    private static String phaseDurationsToCsv(double[] phaseDurations) {
+        StringBuilder sb = new StringBuilder();
+        for (double duration : phaseDurations) {
+            sb.append(",").append(duration);
         }
+        return sb.toString();
     }
 
     //Methods overriding
@@ -628,6 +1271,14 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
     public void setContext(Studio studio) {
         studio_ = studio;
         studio_.events().registerForEvents(this);
+        setMicroscope(new StudioMicroscope(studio));
+    }
+
+    //Run the autofocus on another back end than the one of the Studio
+    public void setMicroscope(Microscope microscope) {
+        microscope_ = new CachedMicroscope(microscope);
+        focusStage = new FocusStage(microscope_, timer);
+        stageMotion = new StageMotion(microscope_, focusStage, timer);
     }
 
     @Override
@@ -693,9 +1344,11 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
         private Integer descriptorExtractor_;
         private Integer descriptorMatcher_;
         private int flag;
+        private boolean tiled_;
 
         ThreadAttribution(Mat img1, Mat img2, double calibration, double intervalInMs, double umPerStep,
-                          Integer detectorAlgo, Integer descriptorExtractor, Integer descriptorMatcher, int flag) {
+                          Integer detectorAlgo, Integer descriptorExtractor, Integer descriptorMatcher, int flag,
+                          boolean tiled) {
             img1_ = img1;
             img2_ = img2;
             calibration_ = calibration;
@@ -705,12 +1358,13 @@ public class BFAutofocus extends AutofocusBase implements AutofocusPlugin, SciJa
             descriptorExtractor_ = descriptorExtractor;
             descriptorMatcher_ = descriptorMatcher;
             this.flag = flag;
+            tiled_ = tiled;
         }
 
         @Override
         public double[] call() {
             return DriftCorrection.driftCorrection(img1_, img2_, calibration_, intervalInMs_,
-                    umPerStep_, detectorAlgo_, descriptorExtractor_, descriptorMatcher_, flag);
+                    umPerStep_, detectorAlgo_, descriptorExtractor_, descriptorMatcher_, flag, tiled_);
         }
     }
 }
@@ -0,0 +1,234 @@
+package edu.univ_tlse3;
+
+import ij.process.ShortProcessor;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.opencv.core.Mat;
+import org.opencv.features2d.DescriptorMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Headless re-run of the focus and XY drift calculation over the "<label>_T<n>" stacks saved with SaveImages=Yes.
+ * Positions are processed in parallel, the time points of one position in order since each one is compared to the previous.
+ * Z positions are relative to the centre of each saved stack and X/Y positions to the previous time point,
+ * the statistics files have the same columns as the ones written during acquisition.
+ * Saved stacks hold the slices of the whole search range in ascending Z, stacks with another number of planes are
+ * skipped.
+ *
+ * Usage : BatchReprocessor <stacks directory> [--out dir] [--prefix name] [--threads n] [--range um] [--step um]
+ *         [--zOffset um] [--pixelSize um] [--interval min] [--umPerStep um] [--detector name] [--extractor name]
+ *         [--guidedMatching Yes|No] [--tiledDetection Yes|No]
+ */
+public class BatchReprocessor {
+
+    private static final Pattern STACK_NAME = Pattern.compile("(.+)_T(\\d+)");
+
+    private File inputDir;
+    private File outputDir;
+    private String prefix = "Batch";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double searchRange = 10;
+    private double step = 0.3;
+    private double zOffset = -1;
+    private double calibration = 1;
+    private double intervalInMin = 1;
+    private double umPerStep = 15;
+    private String detectorAlgo = "AKAZE";
+    private String matcherAlgo = "BRISK";
+    private String guidedMatching = "No";
+    private String tiledDetection = "No";
+
+    public static void main(String[] args) throws Exception {
+        BatchReprocessor reprocessor = new BatchReprocessor();
+        reprocessor.parseArguments(args);
+        DriftCorrection.loadOpenCV();
+        reprocessor.run();
+    }
+
+    void parseArguments(String[] args) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage : BatchReprocessor <stacks directory> [--option value]...");
+        }
+        inputDir = new File(args[0]);
+        outputDir = inputDir;
+        for (int i = 1; i < args.length; i += 2) {
+            if (i == args.length - 1) {
+                throw new IllegalArgumentException("No value given for option " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--out":
+                    outputDir = new File(value);
+                    break;
+                case "--prefix":
+                    prefix = value;
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--range":
+                    searchRange = Double.parseDouble(value);
+                    break;
+                case "--step":
+                    step = Double.parseDouble(value);
+                    break;
+                case "--zOffset":
+                    zOffset = Double.parseDouble(value);
+                    break;
+                case "--pixelSize":
+                    calibration = Double.parseDouble(value);
+                    break;
+                case "--interval":
+                    intervalInMin = Double.parseDouble(value);
+                    break;
+                case "--umPerStep":
+                    umPerStep = Double.parseDouble(value);
+                    break;
+                case "--detector":
+                    detectorAlgo = value;
+                    break;
+                case "--extractor":
+                    matcherAlgo = value;
+                    break;
+                case "--guidedMatching":
+                    guidedMatching = value;
+                    break;
+                case "--tiledDetection":
+                    tiledDetection = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    void run() throws InterruptedException, ExecutionException {
+        Map<String, TreeMap<Integer, File>> stacksByLabel = findStacks(inputDir);
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IllegalStateException("Can not create " + outputDir);
+        }
+        ExecutorService es = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> jobs = new ArrayList<>();
+        for (Map.Entry<String, TreeMap<Integer, File>> entry : stacksByLabel.entrySet()) {
+            jobs.add(es.submit(() -> {
+                processPosition(entry.getKey(), entry.getValue());
+                return null;
+            }));
+        }
+        es.shutdown();
+        try {
+            for (Future<?> job : jobs) {
+                job.get();
+            }
+        } finally {
+            TiledFeatures.shutdown();
+        }
+        ReportingUtils.logMessage(stacksByLabel.size() + " positions reprocessed into " + outputDir);
+    }
+
+    static Map<String, TreeMap<Integer, File>> findStacks(File dir) {
+        Map<String, TreeMap<Integer, File>> stacksByLabel = new TreeMap<>();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IllegalArgumentException(dir + " is not a directory");
+        }
+        for (File child : children) {
+            String name = child.getName().replaceFirst("(?i)\\.tiff?$", "");
+            Matcher m = STACK_NAME.matcher(name);
+            if (m.matches()) {
+                stacksByLabel.computeIfAbsent(m.group(1), k -> new TreeMap<>()).put(Integer.parseInt(m.group(2)), child);
+            }
+        }
+        return stacksByLabel;
+    }
+
+    private void processPosition(String label, TreeMap<Integer, File> stacks) throws IOException {
+        String savingPath = outputDir.getPath() + File.separator;
+        int detector = BFAutofocus.getFeatureDetectorIndex(detectorAlgo);
+        int matcher = BFAutofocus.getDescriptorExtractorIndex(matcherAlgo);
+        FocusTimer timer = new FocusTimer();
+        Mat refMat = null;
+        for (Map.Entry<Integer, File> entry : stacks.entrySet()) {
+            long startTime = System.nanoTime();
+            TiffStackReader reader = new TiffStackReader(entry.getValue());
+            double[] zpositions = BFAutofocus.calculateZPositions(searchRange, step, 0);
+            int nSlices = zpositions.length;
+            if (reader.getNumberOfPlanes() != nSlices) {
+                ReportingUtils.logMessage(entry.getValue() + " has " + reader.getNumberOfPlanes() + " planes instead of "
+                        + nSlices + ", skipped");
+                continue;
+            }
+            timer.startCall();
+            timer.setLabel(label);
+
+            //Focus on the saved slices, read one at a time
+            double[] stdAtZPositions = new double[nSlices];
+            for (int i = 0; i < nSlices; i++) {
+                long phaseStart = System.nanoTime();
+                short[] pixels = reader.readPlane(i);
+                phaseStart = timer.lap(FocusTimer.Phase.SNAP, phaseStart);
+                stdAtZPositions[i] = new ShortProcessor(reader.getWidth(i), reader.getHeight(i), pixels, null)
+                        .getStatistics().stdDev;
+                timer.lap(FocusTimer.Phase.METRIC, phaseStart);
+            }
+            int rawIndex = BFAutofocus.getZfocus(stdAtZPositions);
+            double correctedZPosition = BFAutofocus.optimizeZFocus(rawIndex, stdAtZPositions, zpositions);
+
+            //The drift image is the saved slice closest to the plane snapped during acquisition
+            int driftSlice = nearestIndex(zpositions, correctedZPosition + zOffset);
+            long phaseStart = System.nanoTime();
+            short[] driftPixels = reader.readPlane(driftSlice);
+            phaseStart = timer.lap(FocusTimer.Phase.SNAP, phaseStart);
+            Mat currentMat = BFAutofocus.convertTo8BitsMat(reader.getWidth(driftSlice), reader.getHeight(driftSlice), driftPixels);
+            timer.lap(FocusTimer.Phase.METRIC, phaseStart);
+
+            double[] drifts = new double[DriftCorrection.RESULT_SIZE];
+            if (refMat != null) {
+                drifts = DriftCorrection.driftCorrection(refMat, currentMat, calibration, intervalInMin, umPerStep,
+                        detector, matcher, getDescriptorMatcher(), DriftCorrection.MEAN,
+                        tiledDetection.contentEquals("Yes"));
+                timer.addMillis(FocusTimer.Phase.XY_DETECTION, drifts[DriftCorrection.DETECTION_DURATION]);
+                timer.addMillis(FocusTimer.Phase.XY_DESCRIPTION, drifts[DriftCorrection.DESCRIPTION_DURATION]);
+                timer.addMillis(FocusTimer.Phase.XY_MATCHING, drifts[DriftCorrection.MATCHING_DURATION]);
+                timer.addMillis(FocusTimer.Phase.XY_STATISTICS, drifts[DriftCorrection.STATISTICS_DURATION]);
+            }
+            double xCorrection = drifts[DriftCorrection.X_DRIFT];
+            double yCorrection = drifts[DriftCorrection.Y_DRIFT];
+            if (Double.isNaN(xCorrection) || Double.isNaN(yCorrection)) {
+                xCorrection = 0;
+                yCorrection = 0;
+            }
+            if (refMat != null) {
+                refMat.release();
+            }
+            refMat = currentMat;
+
+            long duration = (System.nanoTime() - startTime) / 1000000;
+            BFAutofocus.writeOutput(savingPath, duration, label, prefix, 0, xCorrection, 0, yCorrection,
+                    0, correctedZPosition, drifts, intervalInMin, timer.getCurrentCallMs());
+            timer.endCall();
+        }
+        if (refMat != null) {
+            refMat.release();
+        }
+    }
+
+    private int getDescriptorMatcher() {
+        return guidedMatching.contentEquals("Yes") ? DriftCorrection.GUIDED_MATCHING : DescriptorMatcher.FLANNBASED;
+    }
+
+    private static int nearestIndex(double[] values, double target) {
+        int nearest = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (Math.abs(values[i] - target) < Math.abs(values[nearest] - target)) {
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,351 @@
+package edu.univ_tlse3;
+
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+
+import java.awt.*;
+import java.io.IOException;
+
+/*
+ * Microscope remembering the last applied camera and channel settings, so that unchanged values are not sent again.
+ * The state is kept from one autofocus call to the next : it is only forgotten when the system reports a change of
+ * configuration, preset or property, and values reported by the system are taken as they are. The channel group state
+ * is kept as a preset name when the group matches one, which avoids reading every property of the group and restoring
+ * the whole system state afterwards.
+ */
+class CachedMicroscope implements Microscope {
+
+    private final Microscope microscope_;
+    private Double exposure = null;
+    private Boolean autoShutter = null;
+    private Boolean shutterOpen = null;
+    private Rectangle roi = null;
+    private Integer binning = null;
+    private String channel = null;
+    private int skippedCalls = 0;
+
+    CachedMicroscope(Microscope microscope) {
+        microscope_ = microscope;
+    }
+
+    Microscope getDelegate() {
+        return microscope_;
+    }
+
+    //Forget everything, the settings are read again when needed
+    void invalidate() {
+        invalidateCamera();
+        autoShutter = null;
+        shutterOpen = null;
+        channel = null;
+    }
+
+    //System events, which are also sent for the calls made through this microscope
+    void onExposureChanged(double exposure) {
+        this.exposure = exposure;
+    }
+
+    void onAutoShutterChanged(boolean autoShutter) {
+        this.autoShutter = autoShutter;
+    }
+
+    void onShutterChanged(boolean open) {
+        shutterOpen = open;
+    }
+
+    void onConfigGroupChanged(String group, String config) {
+        if (group.equals(microscope_.getChannelGroup())) {
+            if (!config.equals(channel)) {
+                invalidateCamera();
+                channel = config;
+            }
+        } else {
+            //Any group may hold camera properties
+            invalidateCamera();
+        }
+    }
+
+    //Only the camera properties held here matter, presets are reported as configuration changes
+    void onPropertyChanged(String property, String value) {
+        if (property.equals("Exposure")) {
+            try {
+                exposure = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                exposure = null;
+            }
+        } else if (property.equals("Binning") && (binning == null || !value.equals(String.valueOf(binning)))) {
+            //The ROI follows the binning
+            binning = null;
+            roi = null;
+        }
+    }
+
+    int getSkippedCalls() {
+        return skippedCalls;
+    }
+
+    //Acquisition context
+    @Override
+    public double getPixelSizeUm() {
+        return microscope_.getPixelSizeUm();
+    }
+
+    @Override
+    public SequenceSettings getAcquisitionSettings() {
+        return microscope_.getAcquisitionSettings();
+    }
+
+    @Override
+    public boolean isAcquisitionRunning() {
+        return microscope_.isAcquisitionRunning();
+    }
+
+    @Override
+    public PositionList getPositionList() throws Exception {
+        return microscope_.getPositionList();
+    }
+
+    //Camera
+    @Override
+    public Rectangle getROI() throws Exception {
+        if (roi == null) {
+            roi = microscope_.getROI();
+        }
+        return new Rectangle(roi);
+    }
+
+    @Override
+    public void setROI(Rectangle roi) throws Exception {
+        if (roi.equals(this.roi)) {
+            skippedCalls++;
+            return;
+        }
+        this.roi = null;
+        microscope_.setROI(roi);
+        this.roi = new Rectangle(roi);
+    }
+
+    @Override
+    public double getExposure() throws Exception {
+        if (exposure == null) {
+            exposure = microscope_.getExposure();
+        }
+        return exposure;
+    }
+
+    @Override
+    public void setExposure(double exposure) throws Exception {
+        if (this.exposure != null && this.exposure == exposure) {
+            skippedCalls++;
+            return;
+        }
+        this.exposure = null;
+        microscope_.setExposure(exposure);
+        this.exposure = exposure;
+    }
+
+    @Override
+    public int getBinning() throws Exception {
+        if (binning == null) {
+            binning = microscope_.getBinning();
+        }
+        return binning;
+    }
+
+    @Override
+    public void setBinning(int binning) throws Exception {
+        if (this.binning != null && this.binning == binning) {
+            skippedCalls++;
+            return;
+        }
+        invalidateCamera();
+        microscope_.setBinning(binning);
+        this.binning = binning;
+    }
+
+    @Override
+    public boolean getAutoShutter() {
+        if (autoShutter == null) {
+            autoShutter = microscope_.getAutoShutter();
+        }
+        return autoShutter;
+    }
+
+    @Override
+    public void setAutoShutter(boolean autoShutter) {
+        if (this.autoShutter != null && this.autoShutter == autoShutter) {
+            skippedCalls++;
+            return;
+        }
+        microscope_.setAutoShutter(autoShutter);
+        this.autoShutter = autoShutter;
+        if (autoShutter) {
+            //The shutter now follows the snaps
+            shutterOpen = null;
+        }
+    }
+
+    @Override
+    public void setShutterOpen(boolean open) throws Exception {
+        if (shutterOpen != null && shutterOpen == open) {
+            skippedCalls++;
+            return;
+        }
+        shutterOpen = null;
+        microscope_.setShutterOpen(open);
+        shutterOpen = open;
+    }
+
+    @Override
+    public void waitForCamera() throws Exception {
+        microscope_.waitForCamera();
+    }
+
+    @Override
+    public void snapImage() throws Exception {
+        microscope_.snapImage();
+    }
+
+    @Override
+    public TaggedImage getTaggedImage() throws Exception {
+        return microscope_.getTaggedImage();
+    }
+
+    @Override
+    public void startContinuousSequenceAcquisition() throws Exception {
+        microscope_.startContinuousSequenceAcquisition();
+    }
+
+    @Override
+    public void stopSequenceAcquisition() throws Exception {
+        microscope_.stopSequenceAcquisition();
+    }
+
+    @Override
+    public int getRemainingImageCount() throws Exception {
+        return microscope_.getRemainingImageCount();
+    }
+
+    @Override
+    public TaggedImage popNextTaggedImage() throws Exception {
+        return microscope_.popNextTaggedImage();
+    }
+
+    //Configuration groups
+    @Override
+    public String getChannelGroup() {
+        return microscope_.getChannelGroup();
+    }
+
+    @Override
+    public String getCurrentChannel() throws Exception {
+        if (channel == null) {
+            channel = microscope_.getCurrentChannel();
+        }
+        return channel;
+    }
+
+    @Override
+    public Object getChannelGroupState() throws Exception {
+        String current = getCurrentChannel();
+        if (current.length() > 0) {
+            return current;
+        }
+        return microscope_.getChannelGroupState();
+    }
+
+    @Override
+    public void setChannel(String channel) throws Exception {
+        if (channel.equals(this.channel)) {
+            skippedCalls++;
+            return;
+        }
+        invalidateCamera();
+        microscope_.setChannel(channel);
+        this.channel = channel;
+    }
+
+    @Override
+    public void restoreChannelGroupState(Object state) throws Exception {
+        if (state instanceof String) {
+            setChannel((String) state);
+        } else {
+            invalidateCamera();
+            channel = null;
+            microscope_.restoreChannelGroupState(state);
+        }
+    }
+
+    //A preset may hold camera properties
+    private void invalidateCamera() {
+        exposure = null;
+        roi = null;
+        binning = null;
+    }
+
+    //Stages
+    @Override
+    public double getXPosition() throws Exception {
+        return microscope_.getXPosition();
+    }
+
+    @Override
+    public double getYPosition() throws Exception {
+        return microscope_.getYPosition();
+    }
+
+    @Override
+    public void setXYPosition(double x, double y) throws Exception {
+        microscope_.setXYPosition(x, y);
+    }
+
+    @Override
+    public void waitForXYStage() throws Exception {
+        microscope_.waitForXYStage();
+    }
+
+    @Override
+    public double getZPosition() throws Exception {
+        return microscope_.getZPosition();
+    }
+
+    @Override
+    public void setZPosition(double z) throws Exception {
+        microscope_.setZPosition(z);
+    }
+
+    @Override
+    public void waitForFocus() throws Exception {
+        microscope_.waitForFocus();
+    }
+
+    @Override
+    public boolean isFocusBusy() throws Exception {
+        return microscope_.isFocusBusy();
+    }
+
+    //Images
+    @Override
+    public Datastore createStackStore(String path) throws IOException {
+        return microscope_.createStackStore(path);
+    }
+
+    @Override
+    public Image convertImage(TaggedImage taggedImage, int zIndex, int timepoint) throws JSONException {
+        return microscope_.convertImage(taggedImage, zIndex, timepoint);
+    }
+
+    @Override
+    public void clearCircularBuffer() throws Exception {
+        microscope_.clearCircularBuffer();
+    }
+
+    @Override
+    public void displayImage(TaggedImage taggedImage) {
+        microscope_.displayImage(taggedImage);
+    }
+}
@@ -11,6 +11,7 @@ import org.opencv.imgproc.Imgproc;
 import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 import static org.opencv.features2d.Features2d.NOT_DRAW_SINGLE_POINTS;
 
@@ -21,6 +22,50 @@ public class DriftCorrection {
     protected static final int MIN = 3;
     protected static final int MODE = 4;
 
+    //Indexes of the array returned by driftCorrection
+    static final int X_DRIFT = 0;
+    static final int Y_DRIFT = 1;
+    static final int NUMBER_OF_MATCHES = 2;
+    static final int NUMBER_OF_GOOD_MATCHES = 3;
+    static final int ALGORITHM_DURATION = 4;
+    static final int DETECTION_DURATION = 5;
+    static final int DESCRIPTION_DURATION = 6;
+    static final int MATCHING_DURATION = 7;
+    static final int STATISTICS_DURATION = 8;
+    static final int NATIVE_BYTES = 9;
+    static final int RESULT_SIZE = 10;
+
+    //Pseudo detector index : whole-frame phase correlation instead of keypoint matching
+    static final int PHASE_CORRELATION = -2;
+    //Pseudo detector index : phase correlation of downsampled frames, refined by matching windows at full resolution
+    static final int PYRAMID = -3;
+    //Pseudo matcher index : matches searched within the allowed displacement only (see GuidedMatcher)
+    static final int GUIDED_MATCHING = -4;
+
+    //Coarse level : the largest downsampling keeping PYRAMID_MIN_SIDE pixels on the smaller side of the frame
+    private static final int[] PYRAMID_FACTORS = {8, 4, 2};
+    private static final int PYRAMID_MIN_SIDE = 24;
+    //Refinement : a grid of square windows of 1/PYRAMID_WINDOW_DIVISOR of the smaller side, searched around the coarse
+    //shift ; windows matching with a lower normalised correlation are ignored
+    private static final int PYRAMID_GRID = 3;
+    private static final int PYRAMID_WINDOW_DIVISOR = 4;
+    private static final int PYRAMID_MIN_WINDOW = 16;
+    private static final double PYRAMID_MIN_SCORE = 0.5;
+
+    //OpenCV algorithms are costly to construct, each thread keeps the ones it has used
+    private static final ThreadLocal<Map<Integer, FeatureDetector>> DETECTORS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<Integer, DescriptorExtractor>> EXTRACTORS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<Integer, DescriptorMatcher>> MATCHERS = ThreadLocal.withInitial(HashMap::new);
+    private static boolean openCVLoaded = false;
+
+    //Load the OpenCV natives once per JVM, whatever the number of autofocus instances
+    static synchronized void loadOpenCV() {
+        if (!openCVLoaded) {
+            nu.pattern.OpenCV.loadShared();
+            openCVLoaded = true;
+        }
+    }
+
     static Mat equalizeImages(Mat img) {
         Mat imgEqualized = new Mat(img.cols(), img.rows(), img.type());
         Imgproc.equalizeHist(img, imgEqualized);
@@ -29,24 +74,33 @@ public class DriftCorrection {
 
     static MatOfKeyPoint findKeypoints(Mat img, int detectorType) {
         MatOfKeyPoint keypoints = new MatOfKeyPoint();
-        FeatureDetector featureDetector = FeatureDetector.create(detectorType);
+        FeatureDetector featureDetector = DETECTORS.get().computeIfAbsent(detectorType, FeatureDetector::create);
         featureDetector.detect(img, keypoints);
         return keypoints;
     }
 
     static Mat calculDescriptors(Mat img, MatOfKeyPoint keypoints, int descriptorType) {
         Mat img_descript = new Mat();
-        DescriptorExtractor extractor = DescriptorExtractor.create(descriptorType);
+        DescriptorExtractor extractor = EXTRACTORS.get().computeIfAbsent(descriptorType, DescriptorExtractor::create);
         extractor.compute(img, keypoints, img_descript);
         return img_descript;
     }
 
     static MatOfDMatch matchingDescriptor(Mat img1_calcul_descriptors, Mat img2_calcul_descriptors, int descriptorMatcherType) {
+        return matchingDescriptor(img1_calcul_descriptors, img2_calcul_descriptors, descriptorMatcherType, null);
+    }
+
+    //Float copies of the descriptors count in the peak memory of the parent scope
+    static MatOfDMatch matchingDescriptor(Mat img1_calcul_descriptors, Mat img2_calcul_descriptors,
+                                          int descriptorMatcherType, MatScope parent) {
         MatOfDMatch matcher = new MatOfDMatch();
-        DescriptorMatcher matcherDescriptor = DescriptorMatcher.create(descriptorMatcherType);
-        Mat img1_descriptor = convertMatDescriptorToCV32F(img1_calcul_descriptors);
-        Mat img2_descriptor = convertMatDescriptorToCV32F(img2_calcul_descriptors);
-        matcherDescriptor.match(img1_descriptor, img2_descriptor, matcher);
+        DescriptorMatcher matcherDescriptor = MATCHERS.get().computeIfAbsent(descriptorMatcherType,
+                DescriptorMatcher::create);
+        try (MatScope scope = new MatScope(parent)) {
+            Mat img1_descriptor = scope.track(convertMatDescriptorToCV32F(img1_calcul_descriptors));
+            Mat img2_descriptor = scope.track(convertMatDescriptorToCV32F(img2_calcul_descriptors));
+            matcherDescriptor.match(img1_descriptor, img2_descriptor, matcher);
+        }
         return matcher;
     }
 
@@ -321,22 +375,195 @@ public class DriftCorrection {
     }
 
 
+    static double toMs(long nanos) {
+        return nanos / 1e6;
+    }
+
+    //Drift of img2 relatively to img1 by phase correlation, in the layout of driftCorrection results ;
+    //NaN when it is over the allowed displacement, as when keypoint matching finds no good match
+    static double[] phaseCorrelationDrift(Mat img1, Mat img2, double calibration, double intervalInMin,
+                                          double umPerStep, MatScope scope) {
+        long startTime = System.nanoTime();
+        Mat img1Float = scope.track(new Mat());
+        Mat img2Float = scope.track(new Mat());
+        img1.convertTo(img1Float, CvType.CV_32F);
+        img2.convertTo(img2Float, CvType.CV_32F);
+        Mat window = scope.track(new Mat());
+        Imgproc.createHanningWindow(window, img1Float.size(), CvType.CV_32F);
+        Point shift = Imgproc.phaseCorrelate(img1Float, img2Float, window, new double[1]);
+        double xDisplacement = shift.x * calibration;
+        double yDisplacement = shift.y * calibration;
+        if (Math.hypot(xDisplacement, yDisplacement) > umPerStep / intervalInMin) {
+            xDisplacement = Double.NaN;
+            yDisplacement = Double.NaN;
+        }
+        double duration = toMs(System.nanoTime() - startTime);
+        return new double[]{xDisplacement, yDisplacement, 0, 0, duration, 0, 0, duration, 0, 0};
+    }
+
+    //Drift of img2 relatively to img1, estimated on downsampled frames and refined by template matching of a few
+    //windows in small search areas around the coarse shift, in the layout of driftCorrection results (windows as
+    //matches, well correlated windows as good matches) ; NaN when over the allowed displacement
+    static double[] pyramidDrift(Mat img1, Mat img2, double calibration, double intervalInMin, double umPerStep,
+                                 MatScope scope) {
+        long startTime = System.nanoTime();
+        int factor = 1;
+        for (int candidate : PYRAMID_FACTORS) {
+            if (Math.min(img1.cols(), img1.rows()) / candidate >= PYRAMID_MIN_SIDE) {
+                factor = candidate;
+                break;
+            }
+        }
+
+        //Coarse shift : the centre of the downsampled img1 is searched in the downsampled img2, within the allowed
+        //displacement and at most a quarter of the frame
+        Mat coarse1 = scope.track(new Mat());
+        Mat coarse2 = scope.track(new Mat());
+        Size coarseSize = new Size(img1.cols() / factor, img1.rows() / factor);
+        Imgproc.resize(img1, coarse1, coarseSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.resize(img2, coarse2, coarseSize, 0, 0, Imgproc.INTER_AREA);
+        int maxShift = (int) Math.ceil(Math.min(umPerStep / intervalInMin / calibration / factor,
+                Math.min(coarse1.cols(), coarse1.rows()) / 4.0));
+        Rect centre = new Rect(maxShift, maxShift, coarse1.cols() - 2 * maxShift, coarse1.rows() - 2 * maxShift);
+        Mat coarseScores = scope.track(new Mat());
+        Imgproc.matchTemplate(coarse2, coarse1.submat(centre), coarseScores, Imgproc.TM_CCOEFF_NORMED);
+        Point coarsePeak = Core.minMaxLoc(coarseScores).maxLoc;
+        int coarseX = (int) Math.round((coarsePeak.x - maxShift) * img1.cols() / coarseSize.width);
+        int coarseY = (int) Math.round((coarsePeak.y - maxShift) * img1.rows() / coarseSize.height);
+        long coarseEnd = System.nanoTime();
+
+        //Refinement, the search areas cover the error of the coarse level
+        int window = Math.max(PYRAMID_MIN_WINDOW, Math.min(img1.cols(), img1.rows()) / PYRAMID_WINDOW_DIVISOR);
+        int margin = factor + 1;
+        int windows = 0;
+        ArrayList<Double> xDistances = new ArrayList<>();
+        ArrayList<Double> yDistances = new ArrayList<>();
+        for (int gx = 0; gx < PYRAMID_GRID; gx++) {
+            for (int gy = 0; gy < PYRAMID_GRID; gy++) {
+                int x = (img1.cols() - window) * gx / (PYRAMID_GRID - 1);
+                int y = (img1.rows() - window) * gy / (PYRAMID_GRID - 1);
+                int searchX = Math.max(0, x + coarseX - margin);
+                int searchY = Math.max(0, y + coarseY - margin);
+                int searchWidth = Math.min(img2.cols(), x + coarseX + window + margin) - searchX;
+                int searchHeight = Math.min(img2.rows(), y + coarseY + window + margin) - searchY;
+                if (window < 1 || searchWidth < window || searchHeight < window) {
+                    continue;
+                }
+                windows++;
+                Mat scores = scope.track(new Mat());
+                Imgproc.matchTemplate(img2.submat(new Rect(searchX, searchY, searchWidth, searchHeight)),
+                        img1.submat(new Rect(x, y, window, window)), scores, Imgproc.TM_CCOEFF_NORMED);
+                Core.MinMaxLocResult peak = Core.minMaxLoc(scores);
+                //Flat windows give NaN scores
+                if (!(peak.maxVal >= PYRAMID_MIN_SCORE)) {
+                    continue;
+                }
+                int peakX = (int) peak.maxLoc.x;
+                int peakY = (int) peak.maxLoc.y;
+                xDistances.add((searchX + peakX + subpixelOffset(scores, peakY, peakX, true) - x) * calibration);
+                yDistances.add((searchY + peakY + subpixelOffset(scores, peakY, peakX, false) - y) * calibration);
+            }
+        }
+        long refinementEnd = System.nanoTime();
+
+        double xDisplacement = xDistances.isEmpty() ? coarseX * calibration : getMedian(xDistances);
+        double yDisplacement = yDistances.isEmpty() ? coarseY * calibration : getMedian(yDistances);
+        if (Math.hypot(xDisplacement, yDisplacement) > umPerStep / intervalInMin) {
+            xDisplacement = Double.NaN;
+            yDisplacement = Double.NaN;
+        }
+        return new double[]{xDisplacement, yDisplacement, windows, xDistances.size(),
+                toMs(refinementEnd - startTime), toMs(coarseEnd - startTime), 0, toMs(refinementEnd - coarseEnd), 0, 0};
+    }
+
+    //Position of the maximum of a parabola through a peak of scores and its two neighbours, along x or y
+    private static double subpixelOffset(Mat scores, int row, int col, boolean horizontal) {
+        int length = horizontal ? scores.cols() : scores.rows();
+        int index = horizontal ? col : row;
+        if (index == 0 || index == length - 1) {
+            return 0;
+        }
+        double previous = horizontal ? scores.get(row, col - 1)[0] : scores.get(row - 1, col)[0];
+        double center = scores.get(row, col)[0];
+        double next = horizontal ? scores.get(row, col + 1)[0] : scores.get(row + 1, col)[0];
+        double curvature = previous - 2 * center + next;
+        return curvature < 0 ? 0.5 * (previous - next) / curvature : 0;
+    }
+
     //********************************************************************************//
     //********************************** Main method *********************************//
     //********************************************************************************//
     public static double[] driftCorrection(Mat img1, Mat img2, double calibration, double intervalInMin, double umPerStep,
                                            Integer detectorAlgo, Integer descriptorExtractor, Integer descriptorMatcher,
                                            int flag) {
+        return driftCorrection(img1, img2, calibration, intervalInMin, umPerStep, detectorAlgo, descriptorExtractor,
+                descriptorMatcher, flag, false);
+    }
 
-        long startTime = new Date().getTime();
-
-        /* 1 - Detect keypoints */
-        MatOfKeyPoint keypoints1 = findKeypoints(img1, detectorAlgo);
-        MatOfKeyPoint keypoints2 = findKeypoints(img2, detectorAlgo);
+    //With tiled, keypoints of both images are detected and described together on tiles (see TiledFeatures) ; the
+    //detection duration then includes the description. Native memory allocated by the estimation is released before
+    //returning, its peak is given at NATIVE_BYTES
+    public static double[] driftCorrection(Mat img1, Mat img2, double calibration, double intervalInMin, double umPerStep,
+                                           Integer detectorAlgo, Integer descriptorExtractor, Integer descriptorMatcher,
+                                           int flag, boolean tiled) {
+        MatScope scope = new MatScope();
+        double[] drifts;
+        try {
+            if (detectorAlgo == PHASE_CORRELATION) {
+                drifts = phaseCorrelationDrift(img1, img2, calibration, intervalInMin, umPerStep, scope);
+            } else if (detectorAlgo == PYRAMID) {
+                drifts = pyramidDrift(img1, img2, calibration, intervalInMin, umPerStep, scope);
+            } else {
+                drifts = keypointDrift(img1, img2, calibration, intervalInMin, umPerStep, detectorAlgo,
+                        descriptorExtractor, descriptorMatcher, flag, tiled, scope);
+            }
+        } finally {
+            scope.close();
+        }
+        if (drifts.length == RESULT_SIZE) {
+            drifts[NATIVE_BYTES] = scope.getPeakBytes();
+        }
+        return drifts;
+    }
 
-        /* 2 - Calculate descriptors */
-        Mat img1_descriptors = calculDescriptors(img1, keypoints1, descriptorExtractor);
-        Mat img2_descriptors = calculDescriptors(img2, keypoints2, descriptorExtractor);
+    private static double[] keypointDrift(Mat img1, Mat img2, double calibration, double intervalInMin,
+                                          double umPerStep, Integer detectorAlgo, Integer descriptorExtractor,
+                                          Integer descriptorMatcher, int flag, boolean tiled, MatScope scope) {
+        long startTime = System.nanoTime();
+
+        MatOfKeyPoint keypoints1;
+        MatOfKeyPoint keypoints2;
+        Mat img1_descriptors;
+        Mat img2_descriptors;
+        long detectionEnd;
+        long descriptionEnd;
+        if (tiled) {
+            /* 1, 2 - Detect keypoints and calculate descriptors tile by tile */
+            TiledFeatures.Features[] features;
+            try {
+                features = TiledFeatures.detectAndDescribe(detectorAlgo, descriptorExtractor,
+                        Runtime.getRuntime().availableProcessors(), scope, img1, img2);
+            } catch (InterruptedException | ExecutionException e) {
+                IJ.log("Tiled keypoint detection failed : " + e);
+                return new double[0];
+            }
+            keypoints1 = scope.track(features[0].keypoints);
+            keypoints2 = scope.track(features[1].keypoints);
+            img1_descriptors = scope.track(features[0].descriptors);
+            img2_descriptors = scope.track(features[1].descriptors);
+            detectionEnd = System.nanoTime();
+            descriptionEnd = detectionEnd;
+        } else {
+            /* 1 - Detect keypoints */
+            keypoints1 = scope.track(findKeypoints(img1, detectorAlgo));
+            keypoints2 = scope.track(findKeypoints(img2, detectorAlgo));
+            detectionEnd = System.nanoTime();
+
+            /* 2 - Calculate descriptors */
+            img1_descriptors = scope.track(calculDescriptors(img1, keypoints1, descriptorExtractor));
+            img2_descriptors = scope.track(calculDescriptors(img2, keypoints2, descriptorExtractor));
+            descriptionEnd = System.nanoTime();
+        }
 
         if(img1_descriptors.empty()) {
             System.out.println("Descriptor ref image empty");
@@ -346,7 +573,13 @@ public class DriftCorrection {
         }
 
         /* 3 - Matching descriptor */
-        MatOfDMatch matcher = matchingDescriptor(img1_descriptors, img2_descriptors, descriptorMatcher);
+        MatOfDMatch matcher;
+        if (descriptorMatcher == GUIDED_MATCHING) {
+            matcher = scope.track(GuidedMatcher.match(keypoints1, img1_descriptors, keypoints2, img2_descriptors,
+                    umPerStep / intervalInMin / calibration));
+        } else {
+            matcher = scope.track(matchingDescriptor(img1_descriptors, img2_descriptors, descriptorMatcher, scope));
+        }
 
         /* 4 - Select and display Good Matches */
         ArrayList<DMatch> good_matchesList = getGoodMatchesValues(matcher, keypoints1, keypoints2, umPerStep, calibration, intervalInMin);
@@ -355,6 +588,7 @@ public class DriftCorrection {
         ArrayList<Integer> listOfGoodMatchesIndex = getGoodMatchesIndex(matcher, keypoints1, keypoints2, umPerStep, calibration, intervalInMin);
         ArrayList<Double> goodMatchesXDistances = getGoodMatchesDistances("xDistances", listOfGoodMatchesIndex, matcher, keypoints1, keypoints2, calibration);
         ArrayList<Double> goodMatchesYDistances = getGoodMatchesDistances("yDistances", listOfGoodMatchesIndex, matcher, keypoints1, keypoints2, calibration);
+        long matchingEnd = System.nanoTime();
 
         /* Calculate statistics */
         double xDisplacement = 0;
@@ -379,10 +613,11 @@ public class DriftCorrection {
             default:
                 IJ.error("Unknown method");
         }
-        long endTime = new Date().getTime();
-        long algorithmDuration = endTime - startTime;
+        long endTime = System.nanoTime();
 
-        return new double[]{xDisplacement, yDisplacement, matcher.rows(), good_matchesList.size(), algorithmDuration};
+        return new double[]{xDisplacement, yDisplacement, matcher.rows(), good_matchesList.size(),
+                toMs(endTime - startTime), toMs(detectionEnd - startTime), toMs(descriptionEnd - detectionEnd),
+                toMs(matchingEnd - descriptionEnd), toMs(endTime - matchingEnd), 0};
     }
 }
 
@@ -0,0 +1,126 @@
+package edu.univ_tlse3;
+
+import org.micromanager.internal.utils.ReportingUtils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Choice of the drift estimator for a run.
+ * The reference image is translated by known shifts, and every detector/extractor pair, plus the whole-frame
+ * estimators, is timed on recovering them. The fastest estimator whose worst error stays within the tolerance is kept.
+ * The shifts are a fraction of the displacement allowed between two time points, so that the good match filter of
+ * DriftCorrection keeps them. Keypoint estimators are run with the matcher and the tiling of the run.
+ */
+class DriftEstimatorTuner {
+
+    static final String PHASE_CORRELATION = "Phase correlation";
+    static final String PYRAMID = "Coarse-to-fine pyramid";
+    //Estimators working on whole frames, without a separate descriptor extractor
+    private static final String[] FRAME_ALGORITHMS = {PHASE_CORRELATION, PYRAMID};
+    private static final String[] KEYPOINT_ALGORITHMS = {"AKAZE", "BRISK", "ORB"};
+    //Directions of the synthetic shifts, scaled by the largest shift
+    private static final double[][] SHIFT_DIRECTIONS = {{0.3, -0.2}, {-0.6, 0.5}, {0.9, 0.7}};
+    private static final double MAX_SHIFT_FRACTION = 0.5;
+    private static final int MAX_SHIFT_IMAGE_DIVISOR = 8;
+
+    //Result of an estimator : {detector, extractor}, its mean duration and its worst error
+    static class Candidate {
+        final String detector;
+        final String extractor;
+        double meanMs = 0;
+        double maxErrorUm = 0;
+
+        Candidate(String detector, String extractor) {
+            this.detector = detector;
+            this.extractor = extractor;
+        }
+
+        @Override
+        public String toString() {
+            String name = Arrays.asList(FRAME_ALGORITHMS).contains(detector) ? detector : detector + "/" + extractor;
+            return String.format("%s : %.1f ms, max error %.3f um", name, meanMs, maxErrorUm);
+        }
+    }
+
+    //Fastest candidate within the tolerance, null if none is
+    static Candidate tune(Mat reference, double calibration, double intervalInMin, double umPerStep,
+                          double toleranceUm, int descriptorMatcher, boolean tiled) {
+        double allowedPx = umPerStep / intervalInMin / calibration;
+        double maxShiftPx = Math.max(1, Math.min(allowedPx * MAX_SHIFT_FRACTION,
+                Math.min(reference.cols(), reference.rows()) / (double) MAX_SHIFT_IMAGE_DIVISOR));
+        //The shifted images are released once every candidate has been timed
+        try (MatScope scope = new MatScope()) {
+            List<Mat> shifted = new ArrayList<>();
+            for (double[] direction : SHIFT_DIRECTIONS) {
+                shifted.add(scope.track(translate(reference, direction[0] * maxShiftPx, direction[1] * maxShiftPx)));
+            }
+
+            List<Candidate> candidates = new ArrayList<>();
+            for (String algorithm : FRAME_ALGORITHMS) {
+                candidates.add(new Candidate(algorithm, algorithm));
+            }
+            for (String detector : KEYPOINT_ALGORITHMS) {
+                for (String extractor : KEYPOINT_ALGORITHMS) {
+                    candidates.add(new Candidate(detector, extractor));
+                }
+            }
+
+            Candidate best = null;
+            for (Candidate candidate : candidates) {
+                int detector = BFAutofocus.getFeatureDetectorIndex(candidate.detector);
+                int extractor = BFAutofocus.getDescriptorExtractorIndex(candidate.extractor);
+                try {
+                    //First run builds the algorithms, it is not timed
+                    estimate(reference, shifted.get(0), calibration, intervalInMin, umPerStep, detector, extractor,
+                            descriptorMatcher, tiled);
+                    for (int i = 0; i < shifted.size(); i++) {
+                        long start = System.nanoTime();
+                        double[] drifts = estimate(reference, shifted.get(i), calibration, intervalInMin, umPerStep,
+                                detector, extractor, descriptorMatcher, tiled);
+                        candidate.meanMs += DriftCorrection.toMs(System.nanoTime() - start) / shifted.size();
+                        double error = Math.hypot(drifts[DriftCorrection.X_DRIFT] - SHIFT_DIRECTIONS[i][0] * maxShiftPx * calibration,
+                                drifts[DriftCorrection.Y_DRIFT] - SHIFT_DIRECTIONS[i][1] * maxShiftPx * calibration);
+                        candidate.maxErrorUm = Double.isNaN(error) ? Double.POSITIVE_INFINITY : Math.max(candidate.maxErrorUm, error);
+                    }
+                } catch (Exception e) {
+                    //Some pairs are incompatible (e.g. AKAZE descriptors need AKAZE keypoints)
+                    candidate.maxErrorUm = Double.POSITIVE_INFINITY;
+                }
+                ReportingUtils.logMessage("Drift estimator " + candidate);
+                if (candidate.maxErrorUm <= toleranceUm && (best == null || candidate.meanMs < best.meanMs)) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static double[] estimate(Mat reference, Mat shifted, double calibration, double intervalInMin,
+                                     double umPerStep, int detector, int extractor, int descriptorMatcher,
+                                     boolean tiled) {
+        double[] drifts = DriftCorrection.driftCorrection(reference, shifted, calibration, intervalInMin, umPerStep,
+                detector, extractor, descriptorMatcher, DriftCorrection.MEAN, tiled);
+        if (drifts.length < DriftCorrection.RESULT_SIZE) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+        return drifts;
+    }
+
+    //Translation of an image by (dx, dy) pixels, the borders being mirrored
+    static Mat translate(Mat img, double dx, double dy) {
+        Mat transform = new Mat(2, 3, CvType.CV_64F);
+        transform.put(0, 0, 1, 0, dx, 0, 1, dy);
+        Mat translated = new Mat();
+        Imgproc.warpAffine(img, translated, transform, img.size(), Imgproc.INTER_LINEAR, Core.BORDER_REFLECT,
+                new Scalar(0));
+        transform.release();
+        return translated;
+    }
+}
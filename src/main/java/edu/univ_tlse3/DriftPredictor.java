@@ -0,0 +1,63 @@
+package edu.univ_tlse3;
+
+/*
+ * Prediction of where the sample of a position will be at the next time point, from the history of its corrected X, Y
+ * and Z kept by the position table.
+ * Each axis is fitted by a straight line over the last PositionTable.HISTORY_SIZE time points : a sliding window follows
+ * the slow changes of rate of a thermal drift without having to fit an exponential on a handful of noisy points.
+ */
+class DriftPredictor {
+
+    private final PositionTable positions;
+
+    DriftPredictor(PositionTable positions) {
+        this.positions = positions;
+    }
+
+    //Predicted {x, y, z} at a time point written in prediction, the last position while fewer than 2 points are known,
+    //false if none is
+    boolean predict(int index, int timepoint, double[] prediction) {
+        int size = positions.getHistorySize(index);
+        if (size == 0) {
+            return false;
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            prediction[axis] = size < 2 ? positions.getHistory(index, size - 1, axis) : fit(index, axis, timepoint, false);
+        }
+        return true;
+    }
+
+    //Root mean square residual of the Z fit, NaN while fewer than 3 points are known
+    double getZResidual(int index) {
+        if (positions.getHistorySize(index) < 3) {
+            return Double.NaN;
+        }
+        return Math.sqrt(fit(index, 2, 0, true));
+    }
+
+    //Least squares line of an axis over the time points : its value at timepoint, or its mean square error
+    private double fit(int index, int axis, int timepoint, boolean meanSquareError) {
+        int size = positions.getHistorySize(index);
+        double meanT = 0;
+        double meanV = 0;
+        for (int k = 0; k < size; k++) {
+            meanT += (double) positions.getHistoryTimepoint(index, k) / size;
+            meanV += positions.getHistory(index, k, axis) / size;
+        }
+        double stt = 0;
+        double stv = 0;
+        double svv = 0;
+        for (int k = 0; k < size; k++) {
+            double dt = positions.getHistoryTimepoint(index, k) - meanT;
+            double dv = positions.getHistory(index, k, axis) - meanV;
+            stt += dt * dt;
+            stv += dt * dv;
+            svv += dv * dv;
+        }
+        double slope = stt > 0 ? stv / stt : 0;
+        if (meanSquareError) {
+            return Math.max(0, svv - slope * stv) / (size - 2);
+        }
+        return meanV + slope * (timepoint - meanT);
+    }
+}
@@ -0,0 +1,67 @@
+package edu.univ_tlse3;
+
+import org.opencv.core.Mat;
+
+import java.awt.*;
+
+/*
+ * Choice of the camera ROI used for the focus.
+ * The gradient energy (dx² + dy²) of an 8 bits frame is summed over every window of the requested size with an
+ * integral image, and the window holding the most texture is kept, so that a small ROI lands on the cells instead
+ * of the background.
+ */
+class FocusRegion {
+
+    //Windows are tried every 1/STRIDE_DIVISOR of their smallest side
+    private static final int STRIDE_DIVISOR = 8;
+
+    //Window of the frame, in frame coordinates, with the highest gradient energy
+    static Rectangle findMostTexturedWindow(Mat img8, int windowWidth, int windowHeight) {
+        int width = img8.cols();
+        int height = img8.rows();
+        byte[] pixels = new byte[width * height];
+        img8.get(0, 0, pixels);
+        return findMostTexturedWindow(pixels, width, height, windowWidth, windowHeight);
+    }
+
+    static Rectangle findMostTexturedWindow(byte[] pixels, int width, int height, int windowWidth, int windowHeight) {
+        windowWidth = Math.max(1, Math.min(width, windowWidth));
+        windowHeight = Math.max(1, Math.min(height, windowHeight));
+        double[] integral = integralGradientEnergy(pixels, width, height);
+        int stride = Math.max(1, Math.min(windowWidth, windowHeight) / STRIDE_DIVISOR);
+        Rectangle best = new Rectangle((width - windowWidth) / 2, (height - windowHeight) / 2, windowWidth, windowHeight);
+        double bestEnergy = windowSum(integral, width, best.x, best.y, windowWidth, windowHeight);
+        for (int y = 0; y + windowHeight <= height; y += stride) {
+            for (int x = 0; x + windowWidth <= width; x += stride) {
+                double energy = windowSum(integral, width, x, y, windowWidth, windowHeight);
+                if (energy > bestEnergy) {
+                    bestEnergy = energy;
+                    best.setLocation(x, y);
+                }
+            }
+        }
+        return best;
+    }
+
+    //Integral image of (width + 1) x (height + 1), the first row and column being 0
+    private static double[] integralGradientEnergy(byte[] pixels, int width, int height) {
+        double[] integral = new double[(width + 1) * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            double rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                int value = pixels[y * width + x] & 0xff;
+                int dx = x + 1 < width ? (pixels[y * width + x + 1] & 0xff) - value : 0;
+                int dy = y + 1 < height ? (pixels[(y + 1) * width + x] & 0xff) - value : 0;
+                rowSum += dx * dx + dy * dy;
+                integral[(y + 1) * (width + 1) + x + 1] = integral[y * (width + 1) + x + 1] + rowSum;
+            }
+        }
+        return integral;
+    }
+
+    private static double windowSum(double[] integral, int width, int x, int y, int w, int h) {
+        int stride = width + 1;
+        return integral[(y + h) * stride + x + w] - integral[y * stride + x + w]
+                - integral[(y + h) * stride + x] + integral[y * stride + x];
+    }
+}
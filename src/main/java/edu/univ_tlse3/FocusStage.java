@@ -0,0 +1,119 @@
+package edu.univ_tlse3;
+
+import org.micromanager.internal.utils.ReportingUtils;
+
+import java.util.Arrays;
+
+/*
+ * Z moves of the autofocus.
+ * Backlash : a target is reached by a final move of at least "backlash" um in the approach direction, so that the
+ * gear slack is always taken up the same way. Positioning moves approach from below, a scan approaches its first
+ * slice in its own direction and then only moves that way.
+ * Settle calibration : the time the focus device takes to be ready is measured once as settle(d) = a + b * |d|.
+ * Calibrated moves then sleep for the predicted time and only fall back to waitForDevice if the device is still busy.
+ */
+class FocusStage {
+
+    private static final int CALIBRATION_MOVES = 5;
+
+    private final Microscope microscope_;
+    private final FocusTimer timer;
+    private double backlash = 0;
+    private boolean useCalibration = false;
+    private double settleOffsetMs = Double.NaN;
+    private double settleMsPerUm = 0;
+    private int lastDirection = 0;
+
+    FocusStage(Microscope microscope, FocusTimer timer) {
+        microscope_ = microscope;
+        this.timer = timer;
+    }
+
+    void setBacklash(double backlash) {
+        this.backlash = Math.abs(backlash);
+    }
+
+    void setUseCalibration(boolean useCalibration) {
+        this.useCalibration = useCalibration;
+    }
+
+    boolean isCalibrated() {
+        return !Double.isNaN(settleOffsetMs);
+    }
+
+    //Positioning move, approached from below
+    void moveTo(double z) throws Exception {
+        approach(z, 1);
+    }
+
+    //Move to z with a final move in the given direction (1 up, -1 down)
+    void approach(double z, int direction) throws Exception {
+        long phaseStart = System.nanoTime();
+        double current = microscope_.getZPosition();
+        double travel = (z - current) * direction;
+        //Pre-position when moving against the approach direction, or too little to take up the slack after a reversal
+        if (backlash > 0 && (travel < 0 || (lastDirection != direction && travel < backlash))) {
+            move(current, z - direction * backlash);
+            current = z - direction * backlash;
+        }
+        move(current, z);
+        timer.lap(FocusTimer.Phase.STAGE, phaseStart);
+    }
+
+    //Move within a scan, the slack has already been taken up by approach
+    void step(double z) throws Exception {
+        long phaseStart = System.nanoTime();
+        move(microscope_.getZPosition(), z);
+        timer.lap(FocusTimer.Phase.STAGE, phaseStart);
+    }
+
+    private void move(double from, double to) throws Exception {
+        if (to != from) {
+            lastDirection = to > from ? 1 : -1;
+        }
+        microscope_.setZPosition(to);
+        if (useCalibration && isCalibrated()) {
+            long settleNs = (long) ((settleOffsetMs + settleMsPerUm * Math.abs(to - from)) * 1e6);
+            if (settleNs > 0) {
+                Thread.sleep(settleNs / 1000000, (int) (settleNs % 1000000));
+            }
+            if (!microscope_.isFocusBusy()) {
+                return;
+            }
+        }
+        microscope_.waitForFocus();
+    }
+
+    //Measure the time to ready for a small and a large move, in both directions
+    void calibrate(double smallMove, double largeMove) throws Exception {
+        double start = microscope_.getZPosition();
+        double[] smallMs = new double[CALIBRATION_MOVES];
+        double[] largeMs = new double[CALIBRATION_MOVES];
+        for (int i = 0; i < CALIBRATION_MOVES; i++) {
+            int sign = i % 2 == 0 ? 1 : -1;
+            smallMs[i] = timeMove(microscope_.getZPosition() + sign * smallMove);
+            largeMs[i] = timeMove(microscope_.getZPosition() + sign * largeMove);
+        }
+        timeMove(start);
+        double small = median(smallMs);
+        double large = median(largeMs);
+        settleMsPerUm = largeMove > smallMove ? Math.max(0, (large - small) / (largeMove - smallMove)) : 0;
+        settleOffsetMs = Math.max(0, small - settleMsPerUm * smallMove);
+        ReportingUtils.logMessage("Focus settle time calibrated : " + settleOffsetMs + " ms + "
+                + settleMsPerUm + " ms/um");
+    }
+
+    private double timeMove(double z) throws Exception {
+        long start = System.nanoTime();
+        lastDirection = 0;
+        microscope_.setZPosition(z);
+        microscope_.waitForFocus();
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
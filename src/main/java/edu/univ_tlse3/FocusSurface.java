@@ -0,0 +1,118 @@
+package edu.univ_tlse3;
+
+/*
+ * Focus map of a plate, used to set the focus of positions which are not scanned at every time point.
+ * Every position keeps the focus of its first scan ; the anchors, scanned at every time point, tell how much the focus
+ * changed since theirs. The change is fitted by a plane over XY, so the focus of a position is its first focus plus the
+ * plane at its place : the plane follows the drift and the tilt of the plate, the first scans keep what is specific to
+ * each position (well bottoms are not perfectly flat).
+ * With collinear anchors (a single row of wells) the change is fitted along the row, with one anchor it is constant.
+ * The first foci and the changes of the anchors are kept in the position table.
+ */
+class FocusSurface {
+
+    //Below this fraction of its largest possible value, the determinant means the anchors are collinear
+    private static final double COLLINEAR_TOLERANCE = 1e-6;
+
+    private final PositionTable positions;
+    //{x, y, change of z since the first scan} of the anchors, gathered for the fit
+    private double[] anchorX = new double[0];
+    private double[] anchorY = new double[0];
+    private double[] anchorChange = new double[0];
+
+    FocusSurface(PositionTable positions) {
+        this.positions = positions;
+    }
+
+    //Scanned focus of a position, which refreshes the surface if the position is an anchor
+    void record(int index, double x, double y, double z, boolean anchor) {
+        if (!positions.hasFirstFocus(index)) {
+            positions.setFirstFocus(index, x, y, z);
+        }
+        if (anchor) {
+            positions.setAnchorChange(index, z - positions.getFirstFocusZ(index));
+        }
+    }
+
+    int getNumberOfAnchors() {
+        int anchors = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            if (positions.isAnchor(i)) {
+                anchors++;
+            }
+        }
+        return anchors;
+    }
+
+    //Focus of a position from the surface, NaN if it has never been scanned or no anchor is known
+    double predict(int index) {
+        if (!positions.hasFirstFocus(index)) {
+            return Double.NaN;
+        }
+        int anchors = gatherAnchors();
+        if (anchors == 0) {
+            return Double.NaN;
+        }
+        double[] plane = fitPlane(anchorX, anchorY, anchorChange, anchors);
+        return positions.getFirstFocusZ(index) + plane[2] + plane[3] * (positions.getFirstFocusX(index) - plane[0])
+                + plane[4] * (positions.getFirstFocusY(index) - plane[1]);
+    }
+
+    //Copy the anchors of the table at the start of the arrays of the fit, returns their number
+    private int gatherAnchors() {
+        if (anchorX.length != positions.size()) {
+            anchorX = new double[positions.size()];
+            anchorY = new double[positions.size()];
+            anchorChange = new double[positions.size()];
+        }
+        int anchors = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            if (positions.isAnchor(i)) {
+                anchorX[anchors] = positions.getFirstFocusX(i);
+                anchorY[anchors] = positions.getFirstFocusY(i);
+                anchorChange[anchors] = positions.getAnchorChange(i);
+                anchors++;
+            }
+        }
+        return anchors;
+    }
+
+    //Least squares plane of the n first {x, y, z} points, on coordinates centred on the points : {mean x, mean y,
+    //mean z, slope along x, slope along y}
+    static double[] fitPlane(double[] xs, double[] ys, double[] zs, int n) {
+        double meanX = 0;
+        double meanY = 0;
+        double meanZ = 0;
+        for (int i = 0; i < n; i++) {
+            meanX += xs[i] / n;
+            meanY += ys[i] / n;
+            meanZ += zs[i] / n;
+        }
+        double sxx = 0;
+        double sxy = 0;
+        double syy = 0;
+        double sxz = 0;
+        double syz = 0;
+        for (int i = 0; i < n; i++) {
+            double dx = xs[i] - meanX;
+            double dy = ys[i] - meanY;
+            double dz = zs[i] - meanZ;
+            sxx += dx * dx;
+            sxy += dx * dy;
+            syy += dy * dy;
+            sxz += dx * dz;
+            syz += dy * dz;
+        }
+        double determinant = sxx * syy - sxy * sxy;
+        if (determinant > COLLINEAR_TOLERANCE * sxx * syy) {
+            return new double[]{meanX, meanY, meanZ, (syy * sxz - sxy * syz) / determinant,
+                    (sxx * syz - sxy * sxz) / determinant};
+        }
+        //Points on a line : slope along the direction of largest spread, the direction of the line
+        double spread = sxx + syy;
+        if (spread == 0) {
+            return new double[]{meanX, meanY, meanZ, 0, 0};
+        }
+        return new double[]{meanX, meanY, meanZ, sxz / spread, syz / spread};
+    }
+}
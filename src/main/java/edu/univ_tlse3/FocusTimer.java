@@ -0,0 +1,241 @@
+package edu.univ_tlse3;
+
+import org.micromanager.internal.utils.ReportingUtils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+//Monotonic per-phase timers of fullFocus, aggregated into per-position histograms
+public class FocusTimer implements FocusTimerMBean {
+
+    static final String OBJECT_NAME = "edu.univ_tlse3:type=BFAutofocus,name=FocusTimer";
+
+    enum Phase {
+        SETUP("setup"),
+        STAGE("stage"),
+        SNAP("snap"),
+        METRIC("metric"),
+        SAVE("save"),
+        XY_DETECTION("xyDetection"),
+        XY_DESCRIPTION("xyDescription"),
+        XY_MATCHING("xyMatching"),
+        XY_STATISTICS("xyStatistics"),
+        RESTORE("restore");
+
+        final String columnName;
+
+        Phase(String columnName) {
+            this.columnName = columnName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] currentCallNs = new long[PHASES.length];
+    private final long[] lastCallNs = new long[PHASES.length];
+    private final Map<String, Histogram[]> histogramsByLabel = new LinkedHashMap<>();
+    private String currentLabel = null;
+    private long callCount = 0;
+
+    //Register the timer on the platform MBean server, replacing a previous plugin instance if any
+    static void register(FocusTimer timer) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(timer, name);
+        } catch (JMException e) {
+            ReportingUtils.logError(e, "Can not register focus timer MBean");
+        }
+    }
+
+    static String[] columnNames() {
+        String[] names = new String[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            names[i] = PHASES[i].columnName + "(ms)";
+        }
+        return names;
+    }
+
+    synchronized void startCall() {
+        Arrays.fill(currentCallNs, 0);
+        currentLabel = null;
+    }
+
+    synchronized void setLabel(String label) {
+        currentLabel = label;
+    }
+
+    //Add the time elapsed since "since" to a phase and return the current time, to chain consecutive phases
+    long lap(Phase phase, long since) {
+        long now = System.nanoTime();
+        add(phase, now - since);
+        return now;
+    }
+
+    synchronized void add(Phase phase, long nanos) {
+        currentCallNs[phase.ordinal()] += nanos;
+    }
+
+    void addMillis(Phase phase, double millis) {
+        add(phase, (long) (millis * 1e6));
+    }
+
+    synchronized void endCall() {
+        System.arraycopy(currentCallNs, 0, lastCallNs, 0, PHASES.length);
+        callCount++;
+        if (currentLabel == null) {
+            return;
+        }
+        Histogram[] histograms = histogramsByLabel.get(currentLabel);
+        if (histograms == null) {
+            histograms = new Histogram[PHASES.length];
+            for (int i = 0; i < PHASES.length; i++) {
+                histograms[i] = new Histogram();
+            }
+            histogramsByLabel.put(currentLabel, histograms);
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            histograms[i].record(currentCallNs[i]);
+        }
+    }
+
+    synchronized double getCurrentCallMs(Phase phase) {
+        return currentCallNs[phase.ordinal()] / 1e6;
+    }
+
+    synchronized double[] getCurrentCallMs() {
+        double[] ms = new double[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            ms[i] = currentCallNs[i] / 1e6;
+        }
+        return ms;
+    }
+
+    //MBean
+    @Override
+    public String[] getPhaseNames() {
+        String[] names = new String[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            names[i] = PHASES[i].columnName;
+        }
+        return names;
+    }
+
+    @Override
+    public synchronized String[] getPositionLabels() {
+        return histogramsByLabel.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public synchronized long getCallCount() {
+        return callCount;
+    }
+
+    @Override
+    public synchronized double[] getLastCallMs() {
+        double[] ms = new double[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            ms[i] = lastCallNs[i] / 1e6;
+        }
+        return ms;
+    }
+
+    @Override
+    public synchronized double getMeanMs(String label, String phase) {
+        Histogram histogram = getHistogram(label, phase);
+        return histogram == null ? Double.NaN : histogram.meanMs();
+    }
+
+    @Override
+    public synchronized double getMaxMs(String label, String phase) {
+        Histogram histogram = getHistogram(label, phase);
+        return histogram == null ? Double.NaN : histogram.maxNs / 1e6;
+    }
+
+    @Override
+    public synchronized double getPercentileMs(String label, String phase, double percentile) {
+        Histogram histogram = getHistogram(label, phase);
+        return histogram == null ? Double.NaN : histogram.percentileMs(percentile);
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram[]> entry : histogramsByLabel.entrySet()) {
+            sb.append(entry.getKey()).append(" :");
+            for (int i = 0; i < PHASES.length; i++) {
+                Histogram histogram = entry.getValue()[i];
+                sb.append(String.format(Locale.US, " %s=%.1f/%.1f/%.1f", PHASES[i].columnName,
+                        histogram.meanMs(), histogram.percentileMs(95), histogram.maxNs / 1e6));
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void reset() {
+        histogramsByLabel.clear();
+        Arrays.fill(currentCallNs, 0);
+        Arrays.fill(lastCallNs, 0);
+        callCount = 0;
+    }
+
+    private Histogram getHistogram(String label, String phase) {
+        Histogram[] histograms = histogramsByLabel.get(label);
+        if (histograms == null) {
+            return null;
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            if (PHASES[i].columnName.equals(phase)) {
+                return histograms[i];
+            }
+        }
+        return null;
+    }
+
+    //Log2 buckets of microseconds : bucket i holds durations in [2^(i-1), 2^i[ us
+    static class Histogram {
+        static final int BUCKETS = 40;
+
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        long sumNs = 0;
+        long maxNs = 0;
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts[bucket]++;
+            count++;
+            sumNs += nanos;
+            maxNs = Math.max(maxNs, nanos);
+        }
+
+        double meanMs() {
+            return count == 0 ? Double.NaN : sumNs / 1e6 / count;
+        }
+
+        //Upper bound of the bucket holding the given percentile
+        double percentileMs(double percentile) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min((1L << i) / 1e3, maxNs / 1e6);
+                }
+            }
+            return maxNs / 1e6;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package edu.univ_tlse3;
+
+//JMX view of the per-phase timings collected by FocusTimer
+public interface FocusTimerMBean {
+
+    String[] getPhaseNames();
+
+    String[] getPositionLabels();
+
+    long getCallCount();
+
+    double[] getLastCallMs();
+
+    double getMeanMs(String label, String phase);
+
+    double getMaxMs(String label, String phase);
+
+    double getPercentileMs(String label, String phase, double percentile);
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,135 @@
+package edu.univ_tlse3;
+
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Descriptor matching restricted to the displacement allowed between two time points.
+ * The keypoints of the second image are sorted into a grid of cells at least as large as the allowed radius, and
+ * about as many as the keypoints so that a small radius does not make a huge grid ; a keypoint of the first image is
+ * only compared with the keypoints of the 3x3 cells around it which are within the radius. The cost is about linear in
+ * the number of keypoints instead of all pairs, and matches farther than the radius, which the good match filter would
+ * discard, are never made.
+ * Binary descriptors (ORB, BRISK, AKAZE) are compared by Hamming distance, others by Euclidean distance.
+ */
+class GuidedMatcher {
+
+    //Best match within radiusPx of each keypoint of the first image which has a candidate
+    static MatOfDMatch match(MatOfKeyPoint keypoints1, Mat descriptors1, MatOfKeyPoint keypoints2, Mat descriptors2,
+                             double radiusPx) {
+        MatOfDMatch matches = new MatOfDMatch();
+        if (descriptors1.empty() || descriptors2.empty() || descriptors1.cols() != descriptors2.cols()
+                || descriptors1.type() != descriptors2.type()) {
+            return matches;
+        }
+        KeyPoint[] points1 = keypoints1.toArray();
+        KeyPoint[] points2 = keypoints2.toArray();
+        double maxX = 0;
+        double maxY = 0;
+        for (KeyPoint point : points2) {
+            maxX = Math.max(maxX, point.pt.x);
+            maxY = Math.max(maxY, point.pt.y);
+        }
+        double cell = Math.max(Math.max(1, radiusPx), Math.sqrt((maxX + 1) * (maxY + 1) / Math.max(1, points2.length)));
+        int columns = (int) (maxX / cell) + 1;
+        int rows = (int) (maxY / cell) + 1;
+
+        //Keypoints sorted by cell : the ones of cell k are order[cellStart[k]] to order[cellStart[k + 1] - 1]
+        int[] cellStart = new int[columns * rows + 1];
+        int[] cellOf = new int[points2.length];
+        for (int i = 0; i < points2.length; i++) {
+            cellOf[i] = (int) (points2[i].pt.y / cell) * columns + (int) (points2[i].pt.x / cell);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int k = 0; k < columns * rows; k++) {
+            cellStart[k + 1] += cellStart[k];
+        }
+        int[] order = new int[points2.length];
+        int[] filled = cellStart.clone();
+        for (int i = 0; i < points2.length; i++) {
+            order[filled[cellOf[i]]++] = i;
+        }
+
+        boolean binary = descriptors1.depth() == CvType.CV_8U;
+        Descriptors rows1 = new Descriptors(descriptors1, binary);
+        Descriptors rows2 = new Descriptors(descriptors2, binary);
+        double radiusSquared = radiusPx * radiusPx;
+        List<DMatch> matchList = new ArrayList<>();
+        for (int i = 0; i < points1.length && i < descriptors1.rows(); i++) {
+            int column = (int) (points1[i].pt.x / cell);
+            int row = (int) (points1[i].pt.y / cell);
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                for (int c = Math.max(0, column - 1); c <= Math.min(columns - 1, column + 1); c++) {
+                    for (int k = cellStart[r * columns + c]; k < cellStart[r * columns + c + 1]; k++) {
+                        int j = order[k];
+                        double dx = points2[j].pt.x - points1[i].pt.x;
+                        double dy = points2[j].pt.y - points1[i].pt.y;
+                        if (j >= descriptors2.rows() || dx * dx + dy * dy > radiusSquared) {
+                            continue;
+                        }
+                        double distance = rows1.distance(i, rows2, j);
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = j;
+                        }
+                    }
+                }
+            }
+            if (best >= 0) {
+                matchList.add(new DMatch(i, best, (float) bestDistance));
+            }
+        }
+        matches.fromList(matchList);
+        return matches;
+    }
+
+    //Descriptors copied once to the Java heap, so that comparing them does not cross JNI
+    private static class Descriptors {
+        private final int length;
+        private final byte[] bytes;
+        private final float[] floats;
+
+        Descriptors(Mat descriptors, boolean binary) {
+            length = descriptors.cols();
+            if (binary) {
+                bytes = new byte[(int) descriptors.total()];
+                descriptors.get(0, 0, bytes);
+                floats = null;
+            } else {
+                Mat converted = new Mat();
+                descriptors.convertTo(converted, CvType.CV_32F);
+                floats = new float[(int) converted.total()];
+                converted.get(0, 0, floats);
+                converted.release();
+                bytes = null;
+            }
+        }
+
+        double distance(int row, Descriptors other, int otherRow) {
+            int offset = row * length;
+            int otherOffset = otherRow * length;
+            if (bytes != null) {
+                int bits = 0;
+                for (int k = 0; k < length; k++) {
+                    bits += Integer.bitCount((bytes[offset + k] ^ other.bytes[otherOffset + k]) & 0xff);
+                }
+                return bits;
+            }
+            double sum = 0;
+            for (int k = 0; k < length; k++) {
+                double difference = floats[offset + k] - other.floats[otherOffset + k];
+                sum += difference * difference;
+            }
+            return Math.sqrt(sum);
+        }
+    }
+}
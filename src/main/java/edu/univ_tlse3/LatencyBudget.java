@@ -0,0 +1,81 @@
+package edu.univ_tlse3;
+
+/*
+ * Time budget of a fullFocus call, so that the autofocus of all positions fits in the acquisition interval.
+ * The budget of a call is a share of the interval divided by the number of positions. The cost of a Z slice and of an
+ * XY drift estimation are followed from the previous calls ; before each of them the remaining time tells how much
+ * can still be done : the Z range is reduced to the slices which fit, the XY estimation is deferred to the next time
+ * point when it does not fit or does not finish in time. Nothing is limited until a cost has been measured.
+ * A position whose XY estimation has been deferred MAX_DEFERRALS times in a row gets one run to completion, whatever the
+ * budget : its drift is corrected again and the cost of the estimation, which a timeout only bounds, is measured again.
+ */
+class LatencyBudget {
+
+    //Below this number of slices the focus can not be located reliably, the scan is not reduced further
+    static final int MIN_SLICES = 5;
+    //Weight of the last measure in the averaged costs
+    private static final double SMOOTHING = 0.3;
+    static final int MAX_DEFERRALS = 2;
+
+    private long deadlineNs = Long.MAX_VALUE;
+    private double msPerSlice = Double.NaN;
+    private double xyMs = Double.NaN;
+
+    //Start the budget of a call, no budget if budgetMs is not positive
+    void start(long startNs, double budgetMs) {
+        deadlineNs = budgetMs > 0 ? startNs + (long) (budgetMs * 1e6) : Long.MAX_VALUE;
+    }
+
+    boolean isLimited() {
+        return deadlineNs != Long.MAX_VALUE;
+    }
+
+    double getRemainingMs() {
+        return isLimited() ? (deadlineNs - System.nanoTime()) / 1e6 : Double.POSITIVE_INFINITY;
+    }
+
+    //Largest range, at most range, whose scan fits in the remaining time while keeping time for the XY estimation
+    double fitRange(double range, double step, boolean withXY) {
+        if (!isLimited() || Double.isNaN(msPerSlice)) {
+            return range;
+        }
+        double available = getRemainingMs() - (withXY && !Double.isNaN(xyMs) ? xyMs : 0);
+        int slices = Math.max(MIN_SLICES, (int) (available / msPerSlice));
+        return Math.min(range, (slices - 1) * step);
+    }
+
+    //Whether the XY estimation of a position deferred that many times in a row is made now
+    boolean fitsXY(int deferrals) {
+        return isXYForced(deferrals) || !isLimited() || Double.isNaN(xyMs) || xyMs <= getRemainingMs();
+    }
+
+    //Whether the XY estimation of a position deferred that many times in a row must run to completion
+    boolean isXYForced(int deferrals) {
+        return deferrals >= MAX_DEFERRALS;
+    }
+
+    void recordScan(int slices, double ms) {
+        if (slices > 0) {
+            msPerSlice = smooth(msPerSlice, ms / slices);
+        }
+    }
+
+    void recordXY(double ms) {
+        xyMs = smooth(xyMs, ms);
+    }
+
+    //An estimation stopped after ms costs more than that
+    void recordXYTimeout(double ms) {
+        xyMs = Double.isNaN(xyMs) ? ms : Math.max(xyMs, ms);
+    }
+
+    void clear() {
+        deadlineNs = Long.MAX_VALUE;
+        msPerSlice = Double.NaN;
+        xyMs = Double.NaN;
+    }
+
+    private static double smooth(double average, double value) {
+        return Double.isNaN(average) ? value : (1 - SMOOTHING) * average + SMOOTHING * value;
+    }
+}
@@ -0,0 +1,67 @@
+package edu.univ_tlse3;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Native memory of the OpenCV objects allocated by one drift estimation or image conversion.
+ * Mats are tracked as they are allocated and all released when the scope is closed, instead of whenever the garbage
+ * collector finalizes their small Java wrappers. A mat which outlives the scope (its result) is simply not tracked.
+ * The peak is the largest native memory seen when a mat is tracked and at closing. A scope opened inside another one
+ * (its parent) adds its own peak to the memory the parent holds when it closes ; nested scopes running in parallel
+ * are counted one at a time.
+ */
+class MatScope implements AutoCloseable {
+
+    private final MatScope parent;
+    private final List<Mat> mats = new ArrayList<>();
+    private long peakBytes = 0;
+
+    MatScope() {
+        this(null);
+    }
+
+    MatScope(MatScope parent) {
+        this.parent = parent;
+    }
+
+    synchronized <T extends Mat> T track(T mat) {
+        mats.add(mat);
+        observe(0);
+        return mat;
+    }
+
+    //Native bytes of the tracked mats, views (submat) count for the memory they show
+    synchronized long getNativeBytes() {
+        long bytes = 0;
+        for (Mat mat : mats) {
+            bytes += mat.total() * mat.elemSize();
+        }
+        return bytes;
+    }
+
+    //Largest native memory held by the scope and its nested scopes
+    synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    private synchronized void observe(long nestedBytes) {
+        peakBytes = Math.max(peakBytes, getNativeBytes() + nestedBytes);
+    }
+
+    @Override
+    public void close() {
+        observe(0);
+        if (parent != null) {
+            parent.observe(getPeakBytes());
+        }
+        synchronized (this) {
+            for (Mat mat : mats) {
+                mat.release();
+            }
+            mats.clear();
+        }
+    }
+}
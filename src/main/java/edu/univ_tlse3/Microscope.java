@@ -0,0 +1,98 @@
+package edu.univ_tlse3;
+
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+
+import java.awt.*;
+import java.io.IOException;
+
+//Hardware and application calls used by the autofocus, so that it can run on a live Micro-Manager or on a simulator
+public interface Microscope {
+
+    //Acquisition context
+    double getPixelSizeUm();
+
+    SequenceSettings getAcquisitionSettings();
+
+    boolean isAcquisitionRunning();
+
+    PositionList getPositionList() throws Exception;
+
+    //Camera
+    Rectangle getROI() throws Exception;
+
+    //Set the camera ROI and wait for the camera
+    void setROI(Rectangle roi) throws Exception;
+
+    double getExposure() throws Exception;
+
+    void setExposure(double exposure) throws Exception;
+
+    int getBinning() throws Exception;
+
+    //Set the camera binning ; the ROI is given in binned pixels and may be reset to the full frame
+    void setBinning(int binning) throws Exception;
+
+    boolean getAutoShutter();
+
+    void setAutoShutter(boolean autoShutter);
+
+    void setShutterOpen(boolean open) throws Exception;
+
+    void waitForCamera() throws Exception;
+
+    void snapImage() throws Exception;
+
+    TaggedImage getTaggedImage() throws Exception;
+
+    //Frames streamed into the circular buffer until stopped, popped in acquisition order
+    void startContinuousSequenceAcquisition() throws Exception;
+
+    void stopSequenceAcquisition() throws Exception;
+
+    int getRemainingImageCount() throws Exception;
+
+    TaggedImage popNextTaggedImage() throws Exception;
+
+    //Configuration groups ; the channel group state is opaque and only given back to restoreChannelGroupState
+    String getChannelGroup();
+
+    //Preset of the channel group matching the current state, empty if none does
+    String getCurrentChannel() throws Exception;
+
+    Object getChannelGroupState() throws Exception;
+
+    void setChannel(String channel) throws Exception;
+
+    void restoreChannelGroupState(Object state) throws Exception;
+
+    //Stages ; moves return immediately, waitFor* block until the device is ready
+    double getXPosition() throws Exception;
+
+    double getYPosition() throws Exception;
+
+    void setXYPosition(double x, double y) throws Exception;
+
+    void waitForXYStage() throws Exception;
+
+    double getZPosition() throws Exception;
+
+    void setZPosition(double z) throws Exception;
+
+    void waitForFocus() throws Exception;
+
+    boolean isFocusBusy() throws Exception;
+
+    //Images ; createStackStore returns null when the back end can not save images
+    Datastore createStackStore(String path) throws IOException;
+
+    Image convertImage(TaggedImage taggedImage, int zIndex, int timepoint) throws JSONException;
+
+    void clearCircularBuffer() throws Exception;
+
+    void displayImage(TaggedImage taggedImage);
+}
@@ -0,0 +1,309 @@
+package edu.univ_tlse3;
+
+import org.micromanager.PositionList;
+import org.opencv.core.Mat;
+
+import java.awt.*;
+import java.util.function.Consumer;
+
+/*
+ * State of the positions of the acquisition, indexed like the position list.
+ * The labels and places of the positions are read from the list once, when the table is built ; the state of a position
+ * is then found by its index in primitive arrays, one per field, so that a visit allocates nothing. Each position keeps
+ * a ring buffer of its last HISTORY_SIZE time points, corrected XYZ and XY drifts, fitted by the drift predictor.
+ * The position of a call is the one of the list where the stage is, since the acquisition engine moves there before
+ * calling the autofocus. When no single position is there (lists without XY stage, duplicated places), the positions
+ * are taken in the order of the list. A list without position is a single position.
+ * The reference images are released when the table is built again or cleared.
+ */
+class PositionTable {
+
+    static final int HISTORY_SIZE = 5;
+    //Distance within which the stage is at a position of the list
+    private static final double PLACE_TOLERANCE_UM = 2;
+
+    private String[] labels = new String[0];
+    private double[] placeX;
+    private double[] placeY;
+    private int[] visits;
+    private boolean[] known;
+    private double[] x;
+    private double[] y;
+    private double[] z;
+    private Mat[] referenceImages;
+    private Rectangle[] focusRois;
+    private ReferenceStack[] referenceStacks;
+    private int[] xyDeferrals;
+    //First scanned focus of each position and, for the anchors of the focus map, the change of Z since then
+    private boolean[] hasFirstFocus;
+    private double[] firstFocusX;
+    private double[] firstFocusY;
+    private double[] firstFocusZ;
+    private boolean[] anchors;
+    private double[] anchorChanges;
+    //Ring buffers of HISTORY_SIZE entries per position, the next entry being written at historyNext
+    private int[] historyNext;
+    private int[] historySize;
+    private int[] historyTimepoint;
+    private double[] historyX;
+    private double[] historyY;
+    private double[] historyZ;
+    private double[] historyDriftX;
+    private double[] historyDriftY;
+    private int current = -1;
+    private final Consumer<Mat> releaser;
+
+    PositionTable() {
+        this(Mat::release);
+    }
+
+    //The releaser is given the reference images the table drops
+    PositionTable(Consumer<Mat> releaser) {
+        this.releaser = releaser;
+    }
+
+    //Build the table on the first call and when the number of positions of the list changes
+    void sync(PositionList positionList) {
+        int size = Math.max(1, positionList.getNumberOfPositions());
+        if (size == labels.length) {
+            return;
+        }
+        releaseReferenceImages();
+        labels = new String[size];
+        placeX = new double[size];
+        placeY = new double[size];
+        if (positionList.getNumberOfPositions() == 0) {
+            labels[0] = positionList.generateLabel();
+            placeX[0] = Double.NaN;
+            placeY[0] = Double.NaN;
+        }
+        for (int i = 0; i < positionList.getNumberOfPositions(); i++) {
+            labels[i] = positionList.getPosition(i).getLabel();
+            placeX[i] = positionList.getPosition(i).getX();
+            placeY[i] = positionList.getPosition(i).getY();
+        }
+        visits = new int[size];
+        known = new boolean[size];
+        x = new double[size];
+        y = new double[size];
+        z = new double[size];
+        referenceImages = new Mat[size];
+        focusRois = new Rectangle[size];
+        referenceStacks = new ReferenceStack[size];
+        xyDeferrals = new int[size];
+        hasFirstFocus = new boolean[size];
+        firstFocusX = new double[size];
+        firstFocusY = new double[size];
+        firstFocusZ = new double[size];
+        anchors = new boolean[size];
+        anchorChanges = new double[size];
+        historyNext = new int[size];
+        historySize = new int[size];
+        historyTimepoint = new int[size * HISTORY_SIZE];
+        historyX = new double[size * HISTORY_SIZE];
+        historyY = new double[size * HISTORY_SIZE];
+        historyZ = new double[size * HISTORY_SIZE];
+        historyDriftX = new double[size * HISTORY_SIZE];
+        historyDriftY = new double[size * HISTORY_SIZE];
+        current = -1;
+    }
+
+    //Index of the position the stage is at, counted as visited
+    int visit(double stageX, double stageY) {
+        int found = -1;
+        for (int i = 0; i < labels.length; i++) {
+            if (Math.abs(placeX[i] - stageX) <= PLACE_TOLERANCE_UM && Math.abs(placeY[i] - stageY) <= PLACE_TOLERANCE_UM) {
+                if (found >= 0) {
+                    found = -1;
+                    break;
+                }
+                found = i;
+            }
+        }
+        current = found >= 0 ? found : (current + 1) % labels.length;
+        visits[current]++;
+        return current;
+    }
+
+    int size() {
+        return labels.length;
+    }
+
+    String getLabel(int index) {
+        return labels[index];
+    }
+
+    //Time point of the current visit of a position, counted from 0
+    int getTimepoint(int index) {
+        return visits[index] - 1;
+    }
+
+    //Number of time points every position has been visited
+    int getMinimumVisits() {
+        int minimum = Integer.MAX_VALUE;
+        for (int count : visits) {
+            minimum = Math.min(minimum, count);
+        }
+        return labels.length == 0 ? 0 : minimum;
+    }
+
+    //Whether a position has a last XYZ
+    boolean isKnown(int index) {
+        return known[index];
+    }
+
+    double getX(int index) {
+        return x[index];
+    }
+
+    double getY(int index) {
+        return y[index];
+    }
+
+    double getZ(int index) {
+        return z[index];
+    }
+
+    void setXYZ(int index, double newX, double newY, double newZ) {
+        known[index] = true;
+        x[index] = newX;
+        y[index] = newY;
+        z[index] = newZ;
+    }
+
+    //Corrected XYZ of a position at a time point, with the XY drift which was measured
+    void record(int index, int timepoint, double newX, double newY, double newZ, double driftX, double driftY) {
+        setXYZ(index, newX, newY, newZ);
+        int entry = index * HISTORY_SIZE + historyNext[index];
+        historyTimepoint[entry] = timepoint;
+        historyX[entry] = newX;
+        historyY[entry] = newY;
+        historyZ[entry] = newZ;
+        historyDriftX[entry] = driftX;
+        historyDriftY[entry] = driftY;
+        historyNext[index] = (historyNext[index] + 1) % HISTORY_SIZE;
+        historySize[index] = Math.min(HISTORY_SIZE, historySize[index] + 1);
+    }
+
+    int getHistorySize(int index) {
+        return historySize[index];
+    }
+
+    //Entries of the history, k from 0 (oldest) to getHistorySize - 1 (last)
+    int getHistoryTimepoint(int index, int k) {
+        return historyTimepoint[historyEntry(index, k)];
+    }
+
+    //Axis 0, 1 and 2 are the corrected X, Y and Z, 3 and 4 the XY drifts
+    double getHistory(int index, int k, int axis) {
+        int entry = historyEntry(index, k);
+        switch (axis) {
+            case 0:
+                return historyX[entry];
+            case 1:
+                return historyY[entry];
+            case 2:
+                return historyZ[entry];
+            case 3:
+                return historyDriftX[entry];
+            default:
+                return historyDriftY[entry];
+        }
+    }
+
+    private int historyEntry(int index, int k) {
+        return index * HISTORY_SIZE + (historyNext[index] - historySize[index] + k + HISTORY_SIZE) % HISTORY_SIZE;
+    }
+
+    Mat getReferenceImage(int index) {
+        return referenceImages[index];
+    }
+
+    //Set the reference image of a position, returns the previous one
+    Mat setReferenceImage(int index, Mat image) {
+        Mat previous = referenceImages[index];
+        referenceImages[index] = image;
+        return previous;
+    }
+
+    Rectangle getFocusRoi(int index) {
+        return focusRois[index];
+    }
+
+    void setFocusRoi(int index, Rectangle roi) {
+        focusRois[index] = roi;
+    }
+
+    ReferenceStack getReferenceStack(int index) {
+        return referenceStacks[index];
+    }
+
+    void setReferenceStack(int index, ReferenceStack reference) {
+        referenceStacks[index] = reference;
+    }
+
+    //Number of XY estimations of a position deferred in a row by the latency budget
+    int getXYDeferrals(int index) {
+        return xyDeferrals[index];
+    }
+
+    void setXYDeferrals(int index, int deferrals) {
+        xyDeferrals[index] = deferrals;
+    }
+
+    boolean hasFirstFocus(int index) {
+        return hasFirstFocus[index];
+    }
+
+    double getFirstFocusX(int index) {
+        return firstFocusX[index];
+    }
+
+    double getFirstFocusY(int index) {
+        return firstFocusY[index];
+    }
+
+    double getFirstFocusZ(int index) {
+        return firstFocusZ[index];
+    }
+
+    void setFirstFocus(int index, double focusX, double focusY, double focusZ) {
+        hasFirstFocus[index] = true;
+        firstFocusX[index] = focusX;
+        firstFocusY[index] = focusY;
+        firstFocusZ[index] = focusZ;
+    }
+
+    //Whether a position is an anchor of the focus map which has been scanned
+    boolean isAnchor(int index) {
+        return anchors[index];
+    }
+
+    double getAnchorChange(int index) {
+        return anchorChanges[index];
+    }
+
+    void setAnchorChange(int index, double change) {
+        anchors[index] = true;
+        anchorChanges[index] = change;
+    }
+
+    //Forget every position, the table is built again on the next sync
+    void clear() {
+        releaseReferenceImages();
+        labels = new String[0];
+        current = -1;
+    }
+
+    private void releaseReferenceImages() {
+        if (referenceImages == null) {
+            return;
+        }
+        for (int i = 0; i < referenceImages.length; i++) {
+            if (referenceImages[i] != null) {
+                releaser.accept(referenceImages[i]);
+                referenceImages[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package edu.univ_tlse3;
+
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Z-stack of a position kept to estimate its focus from a single snap.
+ * Slices are binned down to about TARGET_WIDTH pixels and normalised (zero mean, unit norm), so that the dot product
+ * of two slices is their correlation coefficient. A snap is compared with every slice ; the best one, refined by a
+ * parabola through the correlations of its neighbours, gives how far the snap is from the focus of the stack.
+ * Slices are kept in Z order whatever the order of the scan, so that the neighbours of a slice are its neighbours in Z.
+ * Bright-field slices look different above and below the focus, which makes the sign of the offset measurable.
+ */
+class ReferenceStack {
+
+    private static final int TARGET_WIDTH = 64;
+    //Binning also makes the comparison less sensitive to the XY drift since the reference was acquired
+    private static final int MIN_BINNING = 2;
+
+    private final int width;
+    private final int height;
+    private final int binning;
+    private final List<float[]> slices = new ArrayList<>();
+    private final List<Double> zPositions = new ArrayList<>();
+    private double focusZ = Double.NaN;
+
+    ReferenceStack(int width, int height) {
+        this.width = width;
+        this.height = height;
+        binning = Math.max(MIN_BINNING, width / TARGET_WIDTH);
+    }
+
+    void add(ImageProcessor processor, double z) {
+        int index = zPositions.size();
+        while (index > 0 && zPositions.get(index - 1) > z) {
+            index--;
+        }
+        slices.add(index, normalise(processor));
+        zPositions.add(index, z);
+    }
+
+    void setFocus(double focusZ) {
+        this.focusZ = focusZ;
+    }
+
+    int getNumberOfSlices() {
+        return slices.size();
+    }
+
+    //{offset of the snap from the focus (um), correlation}, null if the snap can not be compared with the stack or
+    //matches its first or last slice, where the offset is not bracketed
+    double[] match(ImageProcessor snap) {
+        if (snap.getWidth() != width || snap.getHeight() != height || slices.size() < 3 || Double.isNaN(focusZ)) {
+            return null;
+        }
+        float[] normalised = normalise(snap);
+        double[] correlations = new double[slices.size()];
+        int best = 0;
+        for (int i = 0; i < slices.size(); i++) {
+            correlations[i] = dot(normalised, slices.get(i));
+            if (correlations[i] > correlations[best]) {
+                best = i;
+            }
+        }
+        if (best == 0 || best == slices.size() - 1) {
+            return null;
+        }
+        double previous = correlations[best - 1];
+        double next = correlations[best + 1];
+        double curvature = previous - 2 * correlations[best] + next;
+        double shift = curvature == 0 ? 0 : 0.5 * (previous - next) / curvature;
+        double step = shift > 0 ? zPositions.get(best + 1) - zPositions.get(best)
+                : zPositions.get(best) - zPositions.get(best - 1);
+        return new double[]{zPositions.get(best) + shift * step - focusZ, correlations[best]};
+    }
+
+    private float[] normalise(ImageProcessor processor) {
+        ImageProcessor binned = binning > 1 ? processor.bin(binning) : processor;
+        float[] pixels = (float[]) binned.convertToFloatProcessor().getPixels();
+        if (pixels == processor.getPixels()) {
+            pixels = pixels.clone();
+        }
+        double mean = 0;
+        for (float pixel : pixels) {
+            mean += pixel;
+        }
+        mean /= pixels.length;
+        double norm = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] -= mean;
+            norm += pixels[i] * pixels[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < pixels.length && norm > 0; i++) {
+            pixels[i] /= norm;
+        }
+        return pixels;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,178 @@
+package edu.univ_tlse3;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/*
+ * Focus of a grid of regions of the field, from the slices of a single Z scan.
+ * Each slice is read once : the sums of the pixels and of their squares are accumulated per region, which gives the
+ * standard deviation of every region and, pooled, of the whole field. Each region gets its own focus the way the whole
+ * field does ; a plane fitted on the foci of the regions gives the tilt of the sample under the objective.
+ * The focus kept is the one of the whole field, the median of the regions, a selected region or the plane at the
+ * centre of the field. A region whose best slice is at an end of the scan has no located focus and is ignored.
+ */
+class RegionFocus {
+
+    static final String WHOLE_FIELD = "Whole field";
+    static final String MEDIAN = "Median of regions";
+    static final String SELECTED_REGION = "Selected region";
+    static final String PLANE = "Plane at field centre";
+    static final String[] MODES = {WHOLE_FIELD, MEDIAN, SELECTED_REGION, PLANE};
+
+    private final int columns;
+    private final int rows;
+    private final double fieldWidthUm;
+    private final double fieldHeightUm;
+    //Standard deviation of each region at each slice, regions in row-major order
+    private final double[][] metric;
+    private double[] foci = null;
+    private double[] plane = null;
+
+    RegionFocus(int columns, int rows, int slices, double fieldWidthUm, double fieldHeightUm) {
+        this.columns = Math.max(1, columns);
+        this.rows = Math.max(1, rows);
+        this.fieldWidthUm = fieldWidthUm;
+        this.fieldHeightUm = fieldHeightUm;
+        metric = new double[this.columns * this.rows][slices];
+        for (double[] regionMetric : metric) {
+            Arrays.fill(regionMetric, Double.NaN);
+        }
+    }
+
+    //Record the regions of a slice, returns the standard deviation of the whole field
+    double add(int slice, ImageProcessor processor) {
+        double[] measures = measure(processor);
+        for (int region = 0; region < metric.length; region++) {
+            metric[region][slice] = measures[region + 1];
+        }
+        foci = null;
+        return measures[0];
+    }
+
+    //Standard deviation of the whole field followed by the ones of the regions, in row-major order
+    double[] measure(ImageProcessor processor) {
+        int width = processor.getWidth();
+        int height = processor.getHeight();
+        int regions = columns * rows;
+        double[] sums = new double[regions];
+        double[] squares = new double[regions];
+        long[] counts = new long[regions];
+        int[] regionColumn = new int[width];
+        for (int x = 0; x < width; x++) {
+            regionColumn[x] = Math.min(columns - 1, x * columns / width);
+        }
+        for (int y = 0; y < height; y++) {
+            int rowOffset = Math.min(rows - 1, y * rows / height) * columns;
+            double rowSum = 0;
+            double rowSquares = 0;
+            int region = rowOffset + regionColumn[0];
+            for (int x = 0; x < width; x++) {
+                if (rowOffset + regionColumn[x] != region) {
+                    sums[region] += rowSum;
+                    squares[region] += rowSquares;
+                    rowSum = 0;
+                    rowSquares = 0;
+                    region = rowOffset + regionColumn[x];
+                }
+                double value = processor.getf(y * width + x);
+                rowSum += value;
+                rowSquares += value * value;
+            }
+            sums[region] += rowSum;
+            squares[region] += rowSquares;
+            for (int column = 0; column < columns; column++) {
+                counts[rowOffset + column] += (long) (column + 1) * width / columns - (long) column * width / columns;
+            }
+        }
+        double[] measures = new double[regions + 1];
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (int region = 0; region < regions; region++) {
+            measures[region + 1] = standardDeviation(sums[region], squares[region], counts[region]);
+            sum += sums[region];
+            sumOfSquares += squares[region];
+        }
+        measures[0] = standardDeviation(sum, sumOfSquares, (long) width * height);
+        return measures;
+    }
+
+    //Metric of a region at every slice, e.g. averaged on the frames of a sweep ; NaN for a slice without metric
+    void setMetric(int region, double[] sliceMetric) {
+        System.arraycopy(sliceMetric, 0, metric[region], 0, metric[region].length);
+        foci = null;
+    }
+
+    int getNumberOfRegions() {
+        return metric.length;
+    }
+
+    //Focus of each region on the acquired interval [first, last] of the Z positions, NaN when it is not located
+    double[] getFoci(double[] zPositions, int first, int last) {
+        if (foci == null) {
+            foci = new double[metric.length];
+            double[] centreX = new double[metric.length];
+            double[] centreY = new double[metric.length];
+            double[] located = new double[metric.length];
+            int nLocated = 0;
+            double[] acquiredZPositions = Arrays.copyOfRange(zPositions, first, last + 1);
+            for (int region = 0; region < metric.length; region++) {
+                double[] regionMetric = Arrays.copyOfRange(metric[region], first, last + 1);
+                int rawIndex = BFAutofocus.getZfocus(regionMetric);
+                if (rawIndex <= 0 || rawIndex >= regionMetric.length - 1) {
+                    foci[region] = Double.NaN;
+                    continue;
+                }
+                foci[region] = BFAutofocus.optimizeZFocus(rawIndex, regionMetric, acquiredZPositions);
+                centreX[nLocated] = getCentreX(region);
+                centreY[nLocated] = getCentreY(region);
+                located[nLocated] = foci[region];
+                nLocated++;
+            }
+            plane = nLocated == 0 ? null : FocusSurface.fitPlane(centreX, centreY, located, nLocated);
+        }
+        return foci;
+    }
+
+    //Focus of the mode, NaN when the regions do not give one ; getFoci must have been called
+    double getFocus(String mode, int selectedRegion) {
+        switch (mode) {
+            case MEDIAN:
+                double[] located = Arrays.stream(foci).filter(focus -> !Double.isNaN(focus)).sorted().toArray();
+                if (located.length == 0) {
+                    return Double.NaN;
+                }
+                return located.length % 2 == 1 ? located[located.length / 2]
+                        : (located[located.length / 2 - 1] + located[located.length / 2]) / 2;
+            case SELECTED_REGION:
+                return selectedRegion >= 0 && selectedRegion < foci.length ? foci[selectedRegion] : Double.NaN;
+            case PLANE:
+                return plane == null ? Double.NaN
+                        : plane[2] + plane[3] * (fieldWidthUm / 2 - plane[0]) + plane[4] * (fieldHeightUm / 2 - plane[1]);
+            default:
+                return Double.NaN;
+        }
+    }
+
+    //Slopes of the plane of the foci along x and y (um of Z per um of field), NaN when no region was located
+    double[] getTilt() {
+        return plane == null ? new double[]{Double.NaN, Double.NaN} : new double[]{plane[3], plane[4]};
+    }
+
+    private double getCentreX(int region) {
+        return (region % columns + 0.5) * fieldWidthUm / columns;
+    }
+
+    private double getCentreY(int region) {
+        return (region / columns + 0.5) * fieldHeightUm / rows;
+    }
+
+    //Sample standard deviation, as ImageJ computes it
+    private static double standardDeviation(double sum, double sumOfSquares, long count) {
+        if (count < 2) {
+            return 0;
+        }
+        double variance = (sumOfSquares - sum * sum / count) / (count - 1);
+        return variance > 0 ? Math.sqrt(variance) : 0;
+    }
+}
@@ -0,0 +1,91 @@
+package edu.univ_tlse3;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Part of a focus stack kept on disk when the full stack is not wanted.
+ * "Best slice" and "Around focus" keep the slices within N of the best one, "Full stack" keeps them all (when they
+ * are binned or compressed). Kept slices are binned if asked and written at the end of the scan with ImageJ as
+ * <label>_T<t>_slices.tif (or .zip when compressed), next to <label>_T<t>_focus.csv which holds the metric of every
+ * acquired slice.
+ * To bound the memory, a slice is dropped as soon as it is more than N slices away from the current best one, unless
+ * it is one of the last 2N acquired : the best slice can only be replaced by a slice acquired later, so the neighbours
+ * of the final best one have always been kept.
+ */
+class StackRetention {
+
+    static final String FULL_STACK = "Full stack";
+    static final String AROUND_FOCUS = "Around focus";
+    static final String BEST_SLICE = "Best slice";
+    static final String[] MODES = {FULL_STACK, AROUND_FOCUS, BEST_SLICE};
+
+    private final int around;
+    private final int binning;
+    private final Map<Integer, ImageProcessor> kept = new TreeMap<>();
+    private final Map<Integer, double[]> curve = new TreeMap<>();
+    private final Map<Integer, Integer> acquisitionOrder = new TreeMap<>();
+    private int acquired = 0;
+    private int best = -1;
+
+    StackRetention(String mode, int slicesAroundFocus, int binning) {
+        if (FULL_STACK.equals(mode)) {
+            around = Integer.MAX_VALUE / 2;
+        } else {
+            around = BEST_SLICE.equals(mode) ? 0 : Math.max(0, slicesAroundFocus);
+        }
+        this.binning = Math.max(1, binning);
+    }
+
+    void add(int index, double z, ImageProcessor processor, double metric) {
+        curve.put(index, new double[]{z, metric});
+        acquisitionOrder.put(index, acquired++);
+        if (best < 0 || metric < curve.get(best)[1]) {
+            best = index;
+        }
+        kept.put(index, binning > 1 ? processor.bin(binning) : processor);
+        kept.keySet().removeIf(i -> Math.abs(i - best) > around && acquired - acquisitionOrder.get(i) > 2 * around);
+    }
+
+    //Write the kept slices and the focus curve, basePath being <saving folder>/<label>_T<t>
+    void save(String basePath, boolean compress) throws IOException {
+        ImageStack stack = null;
+        for (Map.Entry<Integer, ImageProcessor> entry : kept.entrySet()) {
+            if (Math.abs(entry.getKey() - best) > around) {
+                continue;
+            }
+            ImageProcessor processor = entry.getValue();
+            if (stack == null) {
+                stack = new ImageStack(processor.getWidth(), processor.getHeight());
+            }
+            stack.addSlice("Z" + entry.getKey(), processor);
+        }
+        if (stack != null) {
+            FileSaver saver = new FileSaver(new ImagePlus(basePath, stack));
+            boolean saved = compress ? saver.saveAsZip(basePath + "_slices.zip")
+                    : saver.saveAsTiff(basePath + "_slices.tif");
+            if (!saved) {
+                throw new IOException("Can not save the slices of " + basePath);
+            }
+        }
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(basePath + "_focus.csv"))) {
+            writer.println("Slice,Z,Metric,Saved");
+            for (Map.Entry<Integer, double[]> entry : curve.entrySet()) {
+                int index = entry.getKey();
+                boolean saved = Math.abs(index - best) <= around;
+                writer.println(String.format(Locale.US, "%d,%f,%f,%s", index, entry.getValue()[0],
+                        entry.getValue()[1], saved ? "Yes" : "No"));
+            }
+        }
+    }
+}
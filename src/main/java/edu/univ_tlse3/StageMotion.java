@@ -0,0 +1,82 @@
+package edu.univ_tlse3;
+
+/*
+ * XY and XYZ moves of the autofocus, Z moves being left to FocusStage.
+ * Deadbands : a move smaller than the deadband of its axis is not sent, the stage is already as close to the target
+ * as it can position.
+ * Overlap : the XY move is sent first and the Z move is run while the XY stage travels, so that a call waits for the
+ * slowest device instead of for the sum of both. Sequential moves are kept for setups where the objective must not
+ * move while the plate does, e.g. close to the skirt of a plate.
+ */
+class StageMotion {
+
+    private final Microscope microscope_;
+    private final FocusStage focusStage;
+    private final FocusTimer timer;
+    private double xyDeadband = 0;
+    private double zDeadband = 0;
+    private boolean overlap = true;
+    private int skippedMoves = 0;
+
+    StageMotion(Microscope microscope, FocusStage focusStage, FocusTimer timer) {
+        microscope_ = microscope;
+        this.focusStage = focusStage;
+        this.timer = timer;
+    }
+
+    void setDeadbands(double xyDeadband, double zDeadband) {
+        this.xyDeadband = Math.abs(xyDeadband);
+        this.zDeadband = Math.abs(zDeadband);
+    }
+
+    void setOverlap(boolean overlap) {
+        this.overlap = overlap;
+    }
+
+    int getSkippedMoves() {
+        return skippedMoves;
+    }
+
+    void moveXY(double x, double y) throws Exception {
+        if (sendXY(x, y)) {
+            waitForXY();
+        }
+    }
+
+    void moveZ(double z) throws Exception {
+        if (zDeadband > 0 && Math.abs(z - microscope_.getZPosition()) <= zDeadband) {
+            skippedMoves++;
+            return;
+        }
+        focusStage.moveTo(z);
+    }
+
+    //Move to (x, y, z) and wait for both stages
+    void moveTo(double x, double y, double z) throws Exception {
+        boolean xyMoving = sendXY(x, y);
+        if (xyMoving && !overlap) {
+            waitForXY();
+        }
+        moveZ(z);
+        if (xyMoving && overlap) {
+            waitForXY();
+        }
+    }
+
+    //Send the XY move without waiting, false if it is within the deadband
+    private boolean sendXY(double x, double y) throws Exception {
+        if (xyDeadband > 0 && Math.abs(x - microscope_.getXPosition()) <= xyDeadband
+                && Math.abs(y - microscope_.getYPosition()) <= xyDeadband) {
+            skippedMoves++;
+            return false;
+        }
+        microscope_.setXYPosition(x, y);
+        return true;
+    }
+
+    private void waitForXY() throws Exception {
+        long phaseStart = System.nanoTime();
+        microscope_.waitForXYStage();
+        timer.lap(FocusTimer.Phase.STAGE, phaseStart);
+    }
+}
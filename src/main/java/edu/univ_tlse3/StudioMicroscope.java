@@ -0,0 +1,233 @@
+package edu.univ_tlse3;
+
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.MMCoreJ;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.PositionList;
+import org.micromanager.Studio;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+
+//Microscope backed by a running Micro-Manager
+class StudioMicroscope implements Microscope {
+
+    private final Studio studio_;
+    private final CMMCore core_;
+
+    StudioMicroscope(Studio studio) {
+        studio_ = studio;
+        core_ = studio.getCMMCore();
+    }
+
+    @Override
+    public double getPixelSizeUm() {
+        return core_.getPixelSizeUm();
+    }
+
+    @Override
+    public SequenceSettings getAcquisitionSettings() {
+        return studio_.acquisitions().getAcquisitionSettings();
+    }
+
+    @Override
+    public boolean isAcquisitionRunning() {
+        return studio_.acquisitions().isAcquisitionRunning();
+    }
+
+    @Override
+    public PositionList getPositionList() {
+        return studio_.positions().getPositionList();
+    }
+
+    @Override
+    public Rectangle getROI() throws Exception {
+        return core_.getROI();
+    }
+
+    @Override
+    public void setROI(Rectangle roi) throws Exception {
+        studio_.app().setROI(roi);
+        core_.waitForDevice(core_.getCameraDevice());
+    }
+
+    @Override
+    public double getExposure() throws Exception {
+        return core_.getExposure();
+    }
+
+    @Override
+    public void setExposure(double exposure) throws Exception {
+        core_.setExposure(exposure);
+    }
+
+    @Override
+    public int getBinning() throws Exception {
+        String value = core_.getProperty(core_.getCameraDevice(), MMCoreJ.getG_Keyword_Binning());
+        return Integer.parseInt(value.split("x")[0]);
+    }
+
+    @Override
+    public void setBinning(int binning) throws Exception {
+        String camera = core_.getCameraDevice();
+        //Cameras name their binnings either "2" or "2x2"
+        for (String value : core_.getAllowedPropertyValues(camera, MMCoreJ.getG_Keyword_Binning())) {
+            if (value.split("x")[0].equals(String.valueOf(binning))) {
+                core_.setProperty(camera, MMCoreJ.getG_Keyword_Binning(), value);
+                core_.waitForDevice(camera);
+                return;
+            }
+        }
+        throw new Exception("Camera " + camera + " does not support binning " + binning);
+    }
+
+    @Override
+    public boolean getAutoShutter() {
+        return core_.getAutoShutter();
+    }
+
+    @Override
+    public void setAutoShutter(boolean autoShutter) {
+        core_.setAutoShutter(autoShutter);
+    }
+
+    @Override
+    public void setShutterOpen(boolean open) throws Exception {
+        core_.setShutterOpen(open);
+    }
+
+    @Override
+    public void waitForCamera() throws Exception {
+        core_.waitForDevice(core_.getCameraDevice());
+    }
+
+    @Override
+    public void snapImage() throws Exception {
+        core_.snapImage();
+    }
+
+    @Override
+    public TaggedImage getTaggedImage() throws Exception {
+        return core_.getTaggedImage();
+    }
+
+    @Override
+    public void startContinuousSequenceAcquisition() throws Exception {
+        core_.startContinuousSequenceAcquisition(0);
+    }
+
+    @Override
+    public void stopSequenceAcquisition() throws Exception {
+        core_.stopSequenceAcquisition();
+    }
+
+    @Override
+    public int getRemainingImageCount() throws Exception {
+        return core_.getRemainingImageCount();
+    }
+
+    @Override
+    public TaggedImage popNextTaggedImage() throws Exception {
+        return core_.popNextTaggedImage();
+    }
+
+    @Override
+    public String getChannelGroup() {
+        return core_.getChannelGroup();
+    }
+
+    @Override
+    public String getCurrentChannel() throws Exception {
+        return core_.getCurrentConfigFromCache(core_.getChannelGroup());
+    }
+
+    @Override
+    public Object getChannelGroupState() throws Exception {
+        return core_.getConfigGroupState(core_.getChannelGroup());
+    }
+
+    @Override
+    public void setChannel(String channel) throws Exception {
+        core_.setConfig(core_.getChannelGroup(), channel);
+    }
+
+    @Override
+    public void restoreChannelGroupState(Object state) throws Exception {
+        core_.setSystemState((Configuration) state);
+    }
+
+    @Override
+    public double getXPosition() throws Exception {
+        return core_.getXPosition();
+    }
+
+    @Override
+    public double getYPosition() throws Exception {
+        return core_.getYPosition();
+    }
+
+    @Override
+    public void setXYPosition(double x, double y) throws Exception {
+        core_.setXYPosition(x, y);
+    }
+
+    @Override
+    public void waitForXYStage() throws Exception {
+        core_.waitForDevice(core_.getXYStageDevice());
+    }
+
+    @Override
+    public double getZPosition() throws Exception {
+        return core_.getPosition(core_.getFocusDevice());
+    }
+
+    @Override
+    public void setZPosition(double z) throws Exception {
+        core_.setPosition(core_.getFocusDevice(), z);
+    }
+
+    @Override
+    public void waitForFocus() throws Exception {
+        core_.waitForDevice(core_.getFocusDevice());
+    }
+
+    @Override
+    public boolean isFocusBusy() throws Exception {
+        return core_.deviceBusy(core_.getFocusDevice());
+    }
+
+    @Override
+    public Datastore createStackStore(String path) throws IOException {
+        return studio_.data().createMultipageTIFFDatastore(path, false, false);
+    }
+
+    @Override
+    public Image convertImage(TaggedImage taggedImage, int zIndex, int timepoint) throws JSONException {
+        Coords.CoordsBuilder builder = studio_.data().getCoordsBuilder().z(zIndex).channel(0).stagePosition(0).time(timepoint);
+        return studio_.data().convertTaggedImage(taggedImage, builder.build(), null);
+    }
+
+    @Override
+    public void clearCircularBuffer() throws Exception {
+        core_.clearCircularBuffer();
+    }
+
+    @Override
+    public void displayImage(TaggedImage taggedImage) {
+        SwingUtilities.invokeLater(() -> {
+            try {
+                studio_.live().displayImage(studio_.data().convertTaggedImage(taggedImage));
+            }
+            catch (JSONException | IllegalArgumentException e) {
+                studio_.logs().showError(e);
+            }
+        });
+    }
+}
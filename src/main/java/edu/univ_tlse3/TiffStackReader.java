@@ -0,0 +1,81 @@
+package edu.univ_tlse3;
+
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.io.Opener;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Read the planes of the TIFF files of a saved focus stack one at a time, without loading the whole stack
+class TiffStackReader {
+
+    private final List<File> files = new ArrayList<>();
+    private final List<FileInfo> planes = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+
+    //A stack is either one TIFF file or a Micro-Manager datastore directory holding one or several TIFF files
+    TiffStackReader(File stack) throws IOException {
+        File[] tiffs;
+        if (stack.isDirectory()) {
+            tiffs = stack.listFiles((dir, name) -> name.toLowerCase().endsWith(".tif") || name.toLowerCase().endsWith(".tiff"));
+            if (tiffs == null) {
+                tiffs = new File[0];
+            }
+            Arrays.sort(tiffs);
+        } else {
+            tiffs = new File[]{stack};
+        }
+        for (File tiff : tiffs) {
+            FileInfo[] infos = Opener.getTiffFileInfo(tiff.getPath());
+            if (infos == null) {
+                throw new IOException("Can not read TIFF header of " + tiff);
+            }
+            for (FileInfo info : infos) {
+                //ImageJ describes contiguous stacks with a single FileInfo
+                long planeSize = (long) info.width * info.height * info.getBytesPerPixel();
+                for (int i = 0; i < info.nImages; i++) {
+                    files.add(tiff);
+                    planes.add(info);
+                    offsets.add(info.getOffset() + i * (planeSize + info.gapBetweenImages));
+                }
+            }
+        }
+        if (planes.isEmpty()) {
+            throw new IOException("No image found in " + stack);
+        }
+    }
+
+    int getNumberOfPlanes() {
+        return planes.size();
+    }
+
+    int getWidth(int plane) {
+        return planes.get(plane).width;
+    }
+
+    int getHeight(int plane) {
+        return planes.get(plane).height;
+    }
+
+    short[] readPlane(int plane) throws IOException {
+        FileInfo info = (FileInfo) planes.get(plane).clone();
+        info.nImages = 1;
+        info.gapBetweenImages = 0;
+        info.longOffset = 0;
+        info.offset = 0;
+        if (info.fileType != FileInfo.GRAY16_UNSIGNED && info.fileType != FileInfo.GRAY16_SIGNED) {
+            throw new IOException("Only 16 bits images are supported, found file type " + info.fileType);
+        }
+        try (FileInputStream in = new FileInputStream(files.get(plane))) {
+            in.getChannel().position(offsets.get(plane));
+            Object pixels = new ImageReader(info).readPixels(new BufferedInputStream(in));
+            if (pixels == null) {
+                throw new IOException("Can not read plane " + plane + " of " + files.get(plane));
+            }
+            return (short[]) pixels;
+        }
+    }
+}
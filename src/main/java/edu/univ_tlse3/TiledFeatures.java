@@ -0,0 +1,187 @@
+package edu.univ_tlse3;
+
+import org.opencv.core.Core;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Keypoint detection and description of large frames, split in tiles processed on a pool of worker threads.
+ * The cores of the tiles partition the frame ; each tile is its core extended by OVERLAP pixels on every side, so that
+ * keypoints near a core border are detected and described with their whole neighbourhood. A tile only keeps the
+ * keypoints of its core : a keypoint of an overlap is kept by exactly one tile, which removes the duplicates. The merged
+ * keypoints, shifted back to frame coordinates, and their descriptors are listed in tile order.
+ * Detectors keeping a fixed number of best keypoints (ORB) keep them per tile, which spreads them over the frame.
+ */
+class TiledFeatures {
+
+    //Larger than the patches of the descriptors (31 pixels for ORB and BRISK) and the border ignored by the detectors
+    static final int OVERLAP = 48;
+    //Smaller tiles do not gain from the parallelism
+    static final int MIN_TILE_SIDE = 256;
+    private static ExecutorService pool = null;
+
+    static class Features {
+        final MatOfKeyPoint keypoints;
+        final Mat descriptors;
+
+        Features(MatOfKeyPoint keypoints, Mat descriptors) {
+            this.keypoints = keypoints;
+            this.descriptors = descriptors;
+        }
+    }
+
+    //Features of the images, split in about one tile per thread, the tiles of all images being processed together
+    static Features[] detectAndDescribe(int detectorType, int descriptorType, int threads, Mat... images)
+            throws InterruptedException, ExecutionException {
+        return detectAndDescribe(detectorType, descriptorType, threads, null, images);
+    }
+
+    //The memory of the tiles counts in the peak memory of the parent scope
+    //When a tile fails, the tiles not collected yet are cancelled or waited for, and all their mats released
+    static Features[] detectAndDescribe(int detectorType, int descriptorType, int threads, MatScope parent,
+                                        Mat... images) throws InterruptedException, ExecutionException {
+        List<List<Future<Features>>> jobs = new ArrayList<>();
+        List<Future<Features>> pending = new ArrayList<>();
+        for (Mat image : images) {
+            List<Future<Features>> imageJobs = new ArrayList<>();
+            for (Rect core : getCores(image.cols(), image.rows(), threads)) {
+                imageJobs.add(getPool().submit(() -> describeTile(image, core, detectorType, descriptorType, parent)));
+            }
+            jobs.add(imageJobs);
+            pending.addAll(imageJobs);
+        }
+        Features[] features = new Features[images.length];
+        boolean complete = false;
+        try {
+            for (int i = 0; i < images.length; i++) {
+                List<KeyPoint> keypoints = new ArrayList<>();
+                List<Mat> descriptors = new ArrayList<>();
+                try (MatScope scope = new MatScope(parent)) {
+                    for (Future<Features> job : jobs.get(i)) {
+                        Features tile = job.get();
+                        pending.remove(job);
+                        keypoints.addAll(scope.track(tile.keypoints).toList());
+                        if (!scope.track(tile.descriptors).empty()) {
+                            descriptors.add(tile.descriptors);
+                        }
+                    }
+                    MatOfKeyPoint merged = new MatOfKeyPoint();
+                    merged.fromList(keypoints);
+                    Mat mergedDescriptors = new Mat();
+                    if (!descriptors.isEmpty()) {
+                        Core.vconcat(descriptors, mergedDescriptors);
+                    }
+                    features[i] = new Features(merged, mergedDescriptors);
+                }
+            }
+            complete = true;
+            return features;
+        } finally {
+            if (!complete) {
+                for (Features imageFeatures : features) {
+                    release(imageFeatures);
+                }
+                releasePending(pending);
+            }
+        }
+    }
+
+    //Queued tiles are cancelled, running ones are waited for so that their results can be released
+    private static void releasePending(List<Future<Features>> pending) {
+        for (Future<Features> job : pending) {
+            if (job.cancel(false)) {
+                continue;
+            }
+            try {
+                release(job.get());
+            } catch (ExecutionException e) {
+                //Nothing was returned
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void release(Features features) {
+        if (features != null) {
+            features.keypoints.release();
+            features.descriptors.release();
+        }
+    }
+
+    //Grid of about one core per thread, no smaller than MIN_TILE_SIDE
+    static List<Rect> getCores(int width, int height, int threads) {
+        int side = (int) Math.ceil(Math.sqrt(threads));
+        int columns = Math.max(1, Math.min(side, width / MIN_TILE_SIDE));
+        int rows = Math.max(1, Math.min(side, height / MIN_TILE_SIDE));
+        List<Rect> cores = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = width * column / columns;
+                int y = height * row / rows;
+                cores.add(new Rect(x, y, width * (column + 1) / columns - x, height * (row + 1) / rows - y));
+            }
+        }
+        return cores;
+    }
+
+    private static Features describeTile(Mat image, Rect core, int detectorType, int descriptorType,
+                                         MatScope parent) {
+        int x = Math.max(0, core.x - OVERLAP);
+        int y = Math.max(0, core.y - OVERLAP);
+        Rect extended = new Rect(x, y, Math.min(image.cols(), core.x + core.width + OVERLAP) - x,
+                Math.min(image.rows(), core.y + core.height + OVERLAP) - y);
+        try (MatScope scope = new MatScope(parent)) {
+            //Detectors expect continuous images
+            Mat tile = scope.track(image.submat(extended).clone());
+            List<KeyPoint> inCore = new ArrayList<>();
+            for (KeyPoint keypoint : scope.track(DriftCorrection.findKeypoints(tile, detectorType)).toArray()) {
+                if (core.contains(new Point(keypoint.pt.x + extended.x, keypoint.pt.y + extended.y))) {
+                    inCore.add(keypoint);
+                }
+            }
+            MatOfKeyPoint keypoints = new MatOfKeyPoint();
+            keypoints.fromList(inCore);
+            //The extractor drops the keypoints it can not describe
+            Mat descriptors = DriftCorrection.calculDescriptors(tile, keypoints, descriptorType);
+            KeyPoint[] described = keypoints.toArray();
+            for (KeyPoint keypoint : described) {
+                keypoint.pt.x += extended.x;
+                keypoint.pt.y += extended.y;
+            }
+            keypoints.fromArray(described);
+            return new Features(keypoints, descriptors);
+        }
+    }
+
+    //One worker per core, each keeping its own OpenCV algorithms between calls
+    static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "BFAutofocus keypoint tile");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    //Stop the workers once the running tiles are done, a new pool is started by the next detection
+    static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+}
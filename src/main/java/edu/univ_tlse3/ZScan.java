@@ -0,0 +1,130 @@
+package edu.univ_tlse3;
+
+import java.util.Arrays;
+
+/*
+ * Order in which the slices of a Z-stack are acquired.
+ * "Full" acquires every slice. "Outward" starts at the predicted focus and extends the scanned interval on the side(s)
+ * where the metric has not yet risen past the margin above the best (lowest) value ; "One direction" starts from the
+ * first slice and stops once the metric has risen past the margin after the best slice. "Full" and "One direction"
+ * scans can run from the last slice downwards. "Continuous sweep" streams frames during a single move (see ZSweep) ;
+ * when it falls back to slices, they are acquired as for "Full".
+ * Acquired slices always form a contiguous interval [getFirstIndex(), getLastIndex()].
+ */
+class ZScan {
+
+    static final String FULL = "Full";
+    static final String OUTWARD = "Outward";
+    static final String ONE_DIRECTION = "One direction";
+    static final String SWEEP = "Continuous sweep";
+    static final String[] MODES = {FULL, OUTWARD, ONE_DIRECTION, SWEEP};
+
+    private final String mode;
+    private final boolean descending;
+    private final double margin;
+    private final double[] metric;
+    private int first = -1;
+    private int last = -1;
+    private int best = -1;
+    private int startIndex;
+    private boolean extendLowerNext = false;
+
+    ZScan(int nSlices, int startIndex, String mode, double marginPercent) {
+        this(nSlices, startIndex, mode, marginPercent, false);
+    }
+
+    //A descending scan starts from the last slice for the "Full" and "One direction" modes
+    ZScan(int nSlices, int startIndex, String mode, double marginPercent, boolean descending) {
+        this.mode = mode;
+        this.descending = descending;
+        this.margin = marginPercent / 100;
+        this.startIndex = Math.max(0, Math.min(nSlices - 1, startIndex));
+        metric = new double[nSlices];
+        Arrays.fill(metric, Double.NaN);
+        if (ONE_DIRECTION.equals(mode) || FULL.equals(mode)) {
+            this.startIndex = descending ? nSlices - 1 : 0;
+        }
+    }
+
+    //Index of the next slice to acquire, -1 when the scan is over
+    int next() {
+        if (first < 0) {
+            return startIndex;
+        }
+        boolean canGoLower = first > 0;
+        boolean canGoHigher = last < metric.length - 1;
+        switch (mode) {
+            case OUTWARD:
+                boolean lowerDone = !canGoLower || risenPastMargin(first, best);
+                boolean higherDone = !canGoHigher || risenPastMargin(best, last + 1);
+                if (lowerDone && higherDone) {
+                    return -1;
+                } else if (lowerDone) {
+                    return last + 1;
+                } else if (higherDone) {
+                    return first - 1;
+                }
+                extendLowerNext = !extendLowerNext;
+                return extendLowerNext ? first - 1 : last + 1;
+            case ONE_DIRECTION:
+                if (descending) {
+                    return !canGoLower || risenPastMargin(first, best) ? -1 : first - 1;
+                }
+                return !canGoHigher || risenPastMargin(best, last + 1) ? -1 : last + 1;
+            default:
+                if (descending) {
+                    return canGoLower ? first - 1 : -1;
+                }
+                return canGoHigher ? last + 1 : -1;
+        }
+    }
+
+    void record(int index, double value) {
+        metric[index] = value;
+        first = first < 0 ? index : Math.min(first, index);
+        last = Math.max(last, index);
+        if (best < 0 || value < metric[best]) {
+            best = index;
+        }
+    }
+
+    //True if a slice of [from, to[ has a metric above the best one by more than the margin
+    private boolean risenPastMargin(int from, int to) {
+        double threshold = metric[best] + Math.abs(metric[best]) * margin;
+        for (int i = from; i < to; i++) {
+            if (metric[i] > threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getFirstIndex() {
+        return first;
+    }
+
+    int getLastIndex() {
+        return last;
+    }
+
+    //Direction of the moves between consecutive slices, 0 when it alternates
+    int getDirection() {
+        if (OUTWARD.equals(mode)) {
+            return 0;
+        }
+        return descending ? -1 : 1;
+    }
+
+    int getBestIndex() {
+        return best;
+    }
+
+    int getNumberOfAcquiredSlices() {
+        return first < 0 ? 0 : last - first + 1;
+    }
+
+    //Metric of the acquired interval
+    double[] getAcquiredMetric() {
+        return Arrays.copyOfRange(metric, first, last + 1);
+    }
+}
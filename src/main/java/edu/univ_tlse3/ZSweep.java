@@ -0,0 +1,145 @@
+package edu.univ_tlse3;
+
+import mmcorej.TaggedImage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Continuous Z sweep : one move across the search range while the camera streams frames, instead of a move, a settle
+ * and a snap per slice.
+ * The stage runs at its own speed. Its position is sampled during the move ; samples which are not between the ends
+ * of the sweep (stages reporting their target while moving) are ignored, the move then being taken at constant speed
+ * between the command and the end of the move. Each frame gets the Z of the profile at its elapsed time, frames are
+ * scored as they arrive.
+ * The camera tags frames with its own clock ("ElapsedTime-ms"), whose zero is not the start of the sweep and which
+ * may be delivered late : the first frame is exposed from the start of the stream, so its middle is taken at half the
+ * exposure and the next frames at their tag difference with it. Frames without tag get their arrival time.
+ * The metrics of the frames (e.g. the whole field and its regions) are averaged on the slices of the stepped scan,
+ * so that the focus is located the same way.
+ */
+class ZSweep {
+
+    static final String ELAPSED_TIME_TAG = "ElapsedTime-ms";
+    //Wait between two polls of the camera and the stage when no frame is ready
+    private static final long POLL_MS = 1;
+
+    interface Scorer {
+        //Metrics of a frame, the first one being the metric of the focus
+        double[] score(TaggedImage image) throws Exception;
+    }
+
+    private final Microscope microscope_;
+    //{ms since the start of the stream, z} of the stage and {ms since the start of the stream, metrics...} of the frames
+    private final List<double[]> profile = new ArrayList<>();
+    private final List<double[]> frames = new ArrayList<>();
+    private double durationMs = 0;
+    private double exposureMs = 0;
+    //Camera time of the first tagged frame
+    private double firstTagMs = Double.NaN;
+
+    ZSweep(Microscope microscope) {
+        microscope_ = microscope;
+    }
+
+    //Move from the current position to z while the frames are streamed and scored
+    void run(double z, Scorer scorer) throws Exception {
+        double from = microscope_.getZPosition();
+        exposureMs = microscope_.getExposure();
+        microscope_.startContinuousSequenceAcquisition();
+        long startNs = System.nanoTime();
+        try {
+            microscope_.setZPosition(z);
+            profile.add(new double[]{DriftCorrection.toMs(System.nanoTime() - startNs), from});
+            boolean moving = true;
+            while (moving) {
+                moving = microscope_.isFocusBusy();
+                double ms = DriftCorrection.toMs(System.nanoTime() - startNs);
+                double current = moving ? microscope_.getZPosition() : z;
+                if (!moving || (current - from) * (z - current) > 0) {
+                    profile.add(new double[]{ms, current});
+                }
+                if (!popFrames(scorer, startNs)) {
+                    Thread.sleep(POLL_MS);
+                }
+            }
+        } finally {
+            microscope_.stopSequenceAcquisition();
+        }
+        popFrames(scorer, startNs);
+        durationMs = DriftCorrection.toMs(System.nanoTime() - startNs);
+    }
+
+    //Score the frames waiting in the buffer, false if there was none
+    private boolean popFrames(Scorer scorer, long startNs) throws Exception {
+        boolean popped = false;
+        while (microscope_.getRemainingImageCount() > 0) {
+            TaggedImage image = microscope_.popNextTaggedImage();
+            double ms;
+            if (image.tags.has(ELAPSED_TIME_TAG)) {
+                double tagMs = image.tags.getDouble(ELAPSED_TIME_TAG);
+                if (Double.isNaN(firstTagMs)) {
+                    firstTagMs = tagMs;
+                }
+                ms = exposureMs / 2 + tagMs - firstTagMs;
+            } else {
+                ms = DriftCorrection.toMs(System.nanoTime() - startNs);
+            }
+            double[] metrics = scorer.score(image);
+            double[] frame = new double[metrics.length + 1];
+            frame[0] = ms;
+            System.arraycopy(metrics, 0, frame, 1, metrics.length);
+            frames.add(frame);
+            popped = true;
+        }
+        return popped;
+    }
+
+    int getNumberOfFrames() {
+        return frames.size();
+    }
+
+    double getDurationMs() {
+        return durationMs;
+    }
+
+    //Mean metric of the focus of the frames closest to each Z position, NaN for a position without frame
+    double[] getMetric(double[] zPositions) {
+        return getMetric(zPositions, 0);
+    }
+
+    //Mean of one of the metrics of the frames closest to each Z position
+    double[] getMetric(double[] zPositions, int component) {
+        double[] sums = new double[zPositions.length];
+        int[] counts = new int[zPositions.length];
+        double step = zPositions.length > 1 ? zPositions[1] - zPositions[0] : 1;
+        for (double[] frame : frames) {
+            int index = (int) Math.round((getZ(frame[0]) - zPositions[0]) / step);
+            if (index >= 0 && index < zPositions.length) {
+                sums[index] += frame[component + 1];
+                counts[index]++;
+            }
+        }
+        double[] metric = new double[zPositions.length];
+        for (int i = 0; i < metric.length; i++) {
+            metric[i] = counts[i] > 0 ? sums[i] / counts[i] : Double.NaN;
+        }
+        return metric;
+    }
+
+    //Z of the stage at a time of the sweep, linear between the samples of the profile
+    double getZ(double ms) {
+        if (ms <= profile.get(0)[0]) {
+            return profile.get(0)[1];
+        }
+        for (int i = 1; i < profile.size(); i++) {
+            double[] before = profile.get(i - 1);
+            double[] after = profile.get(i);
+            if (ms <= after[0]) {
+                return after[0] == before[0] ? after[1]
+                        : before[1] + (after[1] - before[1]) * (ms - before[0]) / (after[0] - before[0]);
+            }
+        }
+        return profile.get(profile.size() - 1)[1];
+    }
+}
@@ -0,0 +1,159 @@
+package edu.univ_tlse3;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BatchReprocessorTest {
+
+   private static final int SIZE = 256;
+   private static final double RANGE = 6;
+   private static final double STEP = 0.3;
+   private static final double FOCUS = 0.45;
+   private static final int SHIFT_X = 6;
+   private static final int SHIFT_Y = 4;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @BeforeClass
+   public static void loadOpenCV() {
+      DriftCorrection.loadOpenCV();
+   }
+
+   //Smoothed noise between 0 and 1, larger than the images so that they can be cropped at an offset
+   private static FloatProcessor texture() {
+      Random random = new Random(42);
+      FloatProcessor texture = new FloatProcessor(SIZE + 2 * SHIFT_X, SIZE + 2 * SHIFT_Y);
+      for (int i = 0; i < texture.getPixelCount(); i++) {
+         texture.setf(i, (float) random.nextGaussian());
+      }
+      texture.blurGaussian(2);
+      texture.resetMinAndMax();
+      texture.subtract(texture.getMin());
+      texture.multiply(1 / (texture.getMax() - texture.getMin()));
+      return texture;
+   }
+
+   //Slices whose contrast is the lowest at the focus, as bright field images are ; the 8 bits conversion of the drift
+   //images scales the pixels without removing their offset, which is kept low
+   private static File saveStack(File dir, String name, FloatProcessor texture, int offsetX, int offsetY) {
+      return saveStack(dir, name, texture, offsetX, offsetY, RANGE);
+   }
+
+   private static File saveStack(File dir, String name, FloatProcessor texture, int offsetX, int offsetY,
+                                 double range) {
+      ImageStack stack = new ImageStack(SIZE, SIZE);
+      for (double z : BFAutofocus.calculateZPositions(range, STEP, 0)) {
+         double contrast = 200 + 400 * Math.abs(z - FOCUS);
+         short[] pixels = new short[SIZE * SIZE];
+         for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+               pixels[y * SIZE + x] = (short) (10 + contrast * texture.getf(x + offsetX, y + offsetY));
+            }
+         }
+         stack.addSlice(new ShortProcessor(SIZE, SIZE, pixels, null));
+      }
+      File file = new File(dir, name + ".tif");
+      Assert.assertTrue(new FileSaver(new ImagePlus(name, stack)).saveAsTiffStack(file.getPath()));
+      return file;
+   }
+
+   //Focus of the slices of a stack, calculated the way fullFocus does
+   private static double fullFocusZ(File stack) throws Exception {
+      TiffStackReader reader = new TiffStackReader(stack);
+      double[] zPositions = BFAutofocus.calculateZPositions(RANGE, STEP, 0);
+      double[] stdAtZPositions = new double[zPositions.length];
+      for (int i = 0; i < zPositions.length; i++) {
+         stdAtZPositions[i] = new ShortProcessor(SIZE, SIZE, reader.readPlane(i), null).getStatistics().stdDev;
+      }
+      return BFAutofocus.optimizeZFocus(BFAutofocus.getZfocus(stdAtZPositions), stdAtZPositions, zPositions);
+   }
+
+   private void reprocess(File input, File output, String... options) throws Exception {
+      String[] args = {input.getPath(), "--out", output.getPath(), "--threads", "1",
+            "--range", String.valueOf(RANGE), "--step", String.valueOf(STEP), "--pixelSize", "1"};
+      String[] allArgs = Arrays.copyOf(args, args.length + options.length);
+      System.arraycopy(options, 0, allArgs, args.length, options.length);
+      BatchReprocessor reprocessor = new BatchReprocessor();
+      reprocessor.parseArguments(allArgs);
+      reprocessor.run();
+   }
+
+   @Test
+   public void everyTimePointHasARowMatchingFullFocus() throws Exception {
+      checkTimePoints();
+   }
+
+   @Test
+   public void guidedMatchingOnTilesFindsTheShift() throws Exception {
+      checkTimePoints("--guidedMatching", "Yes", "--tiledDetection", "Yes");
+   }
+
+   private void checkTimePoints(String... options) throws Exception {
+      File input = folder.newFolder("stacks");
+      File output = folder.newFolder("out");
+      FloatProcessor texture = texture();
+      File t0 = saveStack(input, "Pos0_T0", texture, SHIFT_X, SHIFT_Y);
+      File t1 = saveStack(input, "Pos0_T1", texture, 0, 0);
+      reprocess(input, output, options);
+
+      List<String> lines = Files.readAllLines(new File(output, "Batch_Stats_Pos0.csv").toPath());
+      Assert.assertEquals(3, lines.size());
+      String[] header = lines.get(0).split(",");
+      String[] first = lines.get(1).split(",");
+      String[] second = lines.get(2).split(",");
+      Assert.assertEquals(header.length, first.length);
+      Assert.assertEquals(header.length, second.length);
+
+      int z = column(header, "correctedZPosition");
+      Assert.assertEquals(fullFocusZ(t0), Double.parseDouble(first[z]), 1e-9);
+      Assert.assertEquals(fullFocusZ(t1), Double.parseDouble(second[z]), 1e-9);
+      Assert.assertEquals(FOCUS, Double.parseDouble(second[z]), STEP);
+
+      //The second time point is the first one moved by the shift
+      Assert.assertEquals(0, Double.parseDouble(first[column(header, "correctedXPosition")]), 0);
+      Assert.assertEquals(SHIFT_X, Math.abs(Double.parseDouble(second[column(header, "correctedXPosition")])), 0.5);
+      Assert.assertEquals(SHIFT_Y, Math.abs(Double.parseDouble(second[column(header, "correctedYPosition")])), 0.5);
+   }
+
+   @Test
+   public void stacksOfAnotherRangeAreSkipped() throws Exception {
+      File input = folder.newFolder("stacks");
+      File output = folder.newFolder("out");
+      FloatProcessor texture = texture();
+      saveStack(input, "Pos0_T0", texture, SHIFT_X, SHIFT_Y);
+      saveStack(input, "Pos0_T1", texture, 0, 0, RANGE / 2);
+      reprocess(input, output);
+
+      List<String> lines = Files.readAllLines(new File(output, "Batch_Stats_Pos0.csv").toPath());
+      Assert.assertEquals(2, lines.size());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void optionWithoutValueIsRejected() {
+      new BatchReprocessor().parseArguments(new String[]{"stacks", "--threads", "1", "--out"});
+   }
+
+   private static int column(String[] header, String name) {
+      for (int i = 0; i < header.length; i++) {
+         if (header[i].equals(name)) {
+            return i;
+         }
+      }
+      throw new IllegalArgumentException(name);
+   }
+}
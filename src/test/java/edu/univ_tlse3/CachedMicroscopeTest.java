@@ -0,0 +1,135 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.*;
+
+public class CachedMicroscopeTest {
+
+   private FakeMicroscope hardware;
+   private CachedMicroscope microscope;
+
+   @Before
+   public void setUp() throws Exception {
+      hardware = new FakeMicroscope();
+      microscope = new CachedMicroscope(hardware);
+      microscope.getExposure();
+      microscope.getROI();
+      microscope.getBinning();
+      microscope.getCurrentChannel();
+      microscope.getAutoShutter();
+      hardware.calls.clear();
+   }
+
+   @Test
+   public void unchangedSettingsAreNotSent() throws Exception {
+      microscope.setExposure(hardware.exposure);
+      microscope.setROI(new Rectangle(hardware.roi));
+      microscope.setBinning(hardware.binning);
+      microscope.setChannel(hardware.channel);
+      microscope.setAutoShutter(true);
+      Assert.assertTrue(hardware.calls.isEmpty());
+      Assert.assertEquals(5, microscope.getSkippedCalls());
+
+      //Reads are answered from the cache
+      Assert.assertEquals(hardware.exposure, microscope.getExposure(), 0);
+      Assert.assertEquals(hardware.roi, microscope.getROI());
+      Assert.assertEquals(hardware.binning, microscope.getBinning());
+      Assert.assertEquals(hardware.channel, microscope.getCurrentChannel());
+      Assert.assertTrue(hardware.calls.isEmpty());
+   }
+
+   @Test
+   public void changedSettingsAreSentOnce() throws Exception {
+      microscope.setExposure(25);
+      microscope.setExposure(25);
+      microscope.setROI(new Rectangle(10, 10, 100, 100));
+      microscope.setROI(new Rectangle(10, 10, 100, 100));
+      microscope.setShutterOpen(true);
+      microscope.setShutterOpen(true);
+      Assert.assertEquals(1, hardware.count("setExposure"));
+      Assert.assertEquals(1, hardware.count("setROI"));
+      Assert.assertEquals(1, hardware.count("setShutterOpen"));
+      Assert.assertEquals(25, hardware.exposure, 0);
+      Assert.assertEquals(new Rectangle(10, 10, 100, 100), hardware.roi);
+   }
+
+   @Test
+   public void channelChangeInvalidatesTheCamera() throws Exception {
+      microscope.setChannel("DAPI");
+      Assert.assertEquals(1, hardware.count("setChannel"));
+      //The preset may have changed the camera
+      hardware.exposure = 100;
+      hardware.binning = 2;
+      Assert.assertEquals(100, microscope.getExposure(), 0);
+      Assert.assertEquals(2, microscope.getBinning());
+      Assert.assertEquals(1, hardware.count("getExposure"));
+      Assert.assertEquals(1, hardware.count("getBinning"));
+      microscope.setExposure(100);
+      Assert.assertEquals(0, hardware.count("setExposure"));
+   }
+
+   @Test
+   public void channelGroupStateIsThePresetName() throws Exception {
+      Object state = microscope.getChannelGroupState();
+      microscope.setChannel("DAPI");
+      microscope.restoreChannelGroupState(state);
+      Assert.assertEquals("BF", hardware.channel);
+      Assert.assertEquals(0, hardware.count("getChannelGroupState"));
+      Assert.assertEquals(0, hardware.count("restoreChannelGroupState"));
+      Assert.assertEquals(2, hardware.count("setChannel"));
+   }
+
+   @Test
+   public void stateIsKeptBetweenCalls() throws Exception {
+      //A first autofocus call switches to its settings and back
+      microscope.setExposure(25);
+      microscope.setExposure(10);
+      hardware.calls.clear();
+      //The next one reads nothing again
+      Assert.assertEquals(10, microscope.getExposure(), 0);
+      Assert.assertEquals("BF", microscope.getCurrentChannel());
+      Assert.assertTrue(microscope.getAutoShutter());
+      Assert.assertTrue(hardware.calls.isEmpty());
+   }
+
+   @Test
+   public void systemEventsUpdateTheState() throws Exception {
+      //Changed by the acquisition engine between two calls
+      hardware.exposure = 40;
+      microscope.onExposureChanged(40);
+      Assert.assertEquals(40, microscope.getExposure(), 0);
+      microscope.onPropertyChanged("Exposure", "50");
+      Assert.assertEquals(50, microscope.getExposure(), 0);
+
+      //A binning change moves the ROI, an unchanged one is ignored
+      microscope.onPropertyChanged("Binning", "1");
+      microscope.onPropertyChanged("Position", "12.5");
+      Assert.assertEquals(0, hardware.count("getROI"));
+      hardware.binning = 2;
+      hardware.roi = new Rectangle(0, 0, 256, 256);
+      microscope.onPropertyChanged("Binning", "2");
+      Assert.assertEquals(new Rectangle(0, 0, 256, 256), microscope.getROI());
+      Assert.assertEquals(2, microscope.getBinning());
+
+      hardware.channel = "GFP";
+      microscope.onConfigGroupChanged("Channel", "GFP");
+      Assert.assertEquals("GFP", microscope.getCurrentChannel());
+      Assert.assertEquals(0, hardware.count("getCurrentChannel"));
+      microscope.setChannel("BF");
+      Assert.assertEquals(1, hardware.count("setChannel"));
+   }
+
+   @Test
+   public void invalidateReadsTheSettingsAgain() throws Exception {
+      hardware.exposure = 40;
+      hardware.channel = "GFP";
+      microscope.invalidate();
+      Assert.assertEquals(40, microscope.getExposure(), 0);
+      Assert.assertEquals("GFP", microscope.getCurrentChannel());
+      Assert.assertEquals(1, hardware.count("getExposure"));
+      Assert.assertEquals(1, hardware.count("getCurrentChannel"));
+   }
+}
@@ -0,0 +1,249 @@
+package edu.univ_tlse3;
+
+import mmcorej.TaggedImage;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Microscope without hardware for the unit tests : it keeps the state it is set to and records the name of every
+ * hardware call, in order. Streamed frames are the ones queued by the test.
+ */
+class FakeMicroscope implements Microscope {
+
+   final List<String> calls = new ArrayList<>();
+   final Deque<TaggedImage> frames = new ArrayDeque<>();
+   Rectangle roi = new Rectangle(0, 0, 512, 512);
+   double exposure = 10;
+   int binning = 1;
+   String channel = "BF";
+   double x = 0;
+   double y = 0;
+   double z = 0;
+   //Number of isFocusBusy calls answering true after a Z move
+   int busyPolls = 0;
+   private int remainingBusyPolls = 0;
+   private boolean autoShutter = true;
+
+   int count(String call) {
+      int count = 0;
+      for (String recorded : calls) {
+         if (recorded.equals(call)) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   @Override
+   public double getPixelSizeUm() {
+      return 1;
+   }
+
+   @Override
+   public SequenceSettings getAcquisitionSettings() {
+      return new SequenceSettings();
+   }
+
+   @Override
+   public boolean isAcquisitionRunning() {
+      return false;
+   }
+
+   @Override
+   public PositionList getPositionList() {
+      return new PositionList();
+   }
+
+   @Override
+   public Rectangle getROI() {
+      calls.add("getROI");
+      return new Rectangle(roi);
+   }
+
+   @Override
+   public void setROI(Rectangle roi) {
+      calls.add("setROI");
+      this.roi = new Rectangle(roi);
+   }
+
+   @Override
+   public double getExposure() {
+      calls.add("getExposure");
+      return exposure;
+   }
+
+   @Override
+   public void setExposure(double exposure) {
+      calls.add("setExposure");
+      this.exposure = exposure;
+   }
+
+   @Override
+   public int getBinning() {
+      calls.add("getBinning");
+      return binning;
+   }
+
+   @Override
+   public void setBinning(int binning) {
+      calls.add("setBinning");
+      this.binning = binning;
+   }
+
+   @Override
+   public boolean getAutoShutter() {
+      return autoShutter;
+   }
+
+   @Override
+   public void setAutoShutter(boolean autoShutter) {
+      calls.add("setAutoShutter");
+      this.autoShutter = autoShutter;
+   }
+
+   @Override
+   public void setShutterOpen(boolean open) {
+      calls.add("setShutterOpen");
+   }
+
+   @Override
+   public void waitForCamera() {
+      calls.add("waitForCamera");
+   }
+
+   @Override
+   public void snapImage() {
+      calls.add("snapImage");
+   }
+
+   @Override
+   public TaggedImage getTaggedImage() {
+      calls.add("getTaggedImage");
+      return frames.poll();
+   }
+
+   @Override
+   public void startContinuousSequenceAcquisition() {
+      calls.add("startContinuousSequenceAcquisition");
+   }
+
+   @Override
+   public void stopSequenceAcquisition() {
+      calls.add("stopSequenceAcquisition");
+   }
+
+   @Override
+   public int getRemainingImageCount() {
+      return frames.size();
+   }
+
+   @Override
+   public TaggedImage popNextTaggedImage() {
+      return frames.poll();
+   }
+
+   @Override
+   public String getChannelGroup() {
+      return "Channel";
+   }
+
+   @Override
+   public String getCurrentChannel() {
+      calls.add("getCurrentChannel");
+      return channel;
+   }
+
+   @Override
+   public Object getChannelGroupState() {
+      calls.add("getChannelGroupState");
+      return channel;
+   }
+
+   @Override
+   public void setChannel(String channel) {
+      calls.add("setChannel");
+      this.channel = channel;
+   }
+
+   @Override
+   public void restoreChannelGroupState(Object state) {
+      calls.add("restoreChannelGroupState");
+      channel = (String) state;
+   }
+
+   @Override
+   public double getXPosition() {
+      return x;
+   }
+
+   @Override
+   public double getYPosition() {
+      return y;
+   }
+
+   @Override
+   public void setXYPosition(double x, double y) {
+      calls.add("setXYPosition");
+      this.x = x;
+      this.y = y;
+   }
+
+   @Override
+   public void waitForXYStage() {
+      calls.add("waitForXYStage");
+   }
+
+   @Override
+   public double getZPosition() {
+      return z;
+   }
+
+   @Override
+   public void setZPosition(double z) {
+      calls.add("setZPosition");
+      this.z = z;
+      remainingBusyPolls = busyPolls;
+   }
+
+   @Override
+   public void waitForFocus() {
+      calls.add("waitForFocus");
+      remainingBusyPolls = 0;
+   }
+
+   @Override
+   public boolean isFocusBusy() {
+      if (remainingBusyPolls > 0) {
+         remainingBusyPolls--;
+         return true;
+      }
+      return false;
+   }
+
+   @Override
+   public Datastore createStackStore(String path) {
+      return null;
+   }
+
+   @Override
+   public Image convertImage(TaggedImage taggedImage, int zIndex, int timepoint) {
+      throw new UnsupportedOperationException("The fake microscope has no images to convert");
+   }
+
+   @Override
+   public void clearCircularBuffer() {
+      calls.add("clearCircularBuffer");
+   }
+
+   @Override
+   public void displayImage(TaggedImage taggedImage) {
+   }
+}
@@ -0,0 +1,95 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+
+public class FocusSurfaceTest {
+
+   //Below a slice of the default scan
+   private static final double TOLERANCE = 0.1;
+
+   private PositionTable positions;
+   private FocusSurface surface;
+
+   @Before
+   public void setUp() {
+      PositionList positionList = new PositionList();
+      for (int i = 0; i < 6; i++) {
+         positionList.addPosition(new MultiStagePosition("XY", 1000 * (i % 3), 1000 * (i / 3), "Z", 0));
+      }
+      positions = new PositionTable();
+      positions.sync(positionList);
+      surface = new FocusSurface(positions);
+   }
+
+   private static double plate(double x, double y) {
+      return 100 + 0.002 * x - 0.001 * y;
+   }
+
+   //First scan of every position, wells being up to 0.5 um off the plate
+   private void scanAll(boolean... anchors) {
+      for (int i = 0; i < positions.size(); i++) {
+         double x = 1000 * (i % 3);
+         double y = 1000 * (i / 3);
+         surface.record(i, x, y, plate(x, y) + 0.1 * i - 0.25, anchors[i]);
+      }
+   }
+
+   @Test
+   public void positionsAreNotPredictedBeforeTheirScanOrWithoutAnchor() {
+      Assert.assertTrue(Double.isNaN(surface.predict(1)));
+      surface.record(1, 1000, 0, 100, false);
+      Assert.assertTrue(Double.isNaN(surface.predict(1)));
+      Assert.assertEquals(0, surface.getNumberOfAnchors());
+   }
+
+   @Test
+   public void tiltedChangeIsFollowedBetweenTheAnchors() {
+      scanAll(true, false, true, false, true, false);
+      Assert.assertEquals(3, surface.getNumberOfAnchors());
+      //The plate drifts by 2 um and tilts along x
+      for (int i : new int[]{0, 2, 4}) {
+         double x = 1000 * (i % 3);
+         double y = 1000 * (i / 3);
+         surface.record(i, x, y, positions.getFirstFocusZ(i) + 2 + 0.0005 * x, true);
+      }
+      for (int i : new int[]{1, 3, 5}) {
+         double expected = positions.getFirstFocusZ(i) + 2 + 0.0005 * positions.getFirstFocusX(i);
+         Assert.assertEquals(expected, surface.predict(i), TOLERANCE);
+      }
+   }
+
+   @Test
+   public void collinearAnchorsGiveTheChangeAlongTheirRow() {
+      scanAll(true, false, true, false, false, false);
+      surface.record(0, 0, 0, positions.getFirstFocusZ(0) + 1, true);
+      surface.record(2, 2000, 0, positions.getFirstFocusZ(2) + 3, true);
+      Assert.assertEquals(positions.getFirstFocusZ(1) + 2, surface.predict(1), TOLERANCE);
+   }
+
+   @Test
+   public void singleAnchorGivesAConstantChange() {
+      scanAll(false, true, false, false, false, false);
+      surface.record(1, 1000, 0, positions.getFirstFocusZ(1) - 0.7, true);
+      for (int i = 0; i < positions.size(); i++) {
+         Assert.assertEquals(positions.getFirstFocusZ(i) - 0.7, surface.predict(i), TOLERANCE);
+      }
+   }
+
+   @Test
+   public void planeIsFittedExactlyOnPointsOfAPlane() {
+      double[] xs = {0, 100, 0, 100, 50};
+      double[] ys = {0, 0, 100, 100, 50};
+      double[] zs = new double[xs.length];
+      for (int i = 0; i < xs.length; i++) {
+         zs[i] = plate(xs[i], ys[i]);
+      }
+      double[] plane = FocusSurface.fitPlane(xs, ys, zs, xs.length);
+      Assert.assertEquals(0.002, plane[3], 1e-12);
+      Assert.assertEquals(-0.001, plane[4], 1e-12);
+      Assert.assertEquals(plate(plane[0], plane[1]), plane[2], 1e-9);
+   }
+}
@@ -0,0 +1,104 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class FocusTimerTest {
+
+   private static final long US = 1000;
+   private static final long MS = 1000000;
+
+   @Test
+   public void durationsFallInTheirLog2Buckets() {
+      FocusTimer.Histogram histogram = new FocusTimer.Histogram();
+      histogram.record(500);
+      histogram.record(US);
+      histogram.record(3 * US);
+      histogram.record(MS);
+      histogram.record(1500 * US);
+      histogram.record(Long.MAX_VALUE / 2);
+      Assert.assertEquals(1, histogram.counts[0]);
+      Assert.assertEquals(1, histogram.counts[1]);
+      Assert.assertEquals(1, histogram.counts[2]);
+      //1000 us is in [512, 1024[, 1500 us in [1024, 2048[
+      Assert.assertEquals(1, histogram.counts[10]);
+      Assert.assertEquals(1, histogram.counts[11]);
+      Assert.assertEquals(1, histogram.counts[FocusTimer.Histogram.BUCKETS - 1]);
+      Assert.assertEquals(6, histogram.count);
+   }
+
+   @Test
+   public void percentileIsTheUpperBoundOfItsBucket() {
+      FocusTimer.Histogram histogram = new FocusTimer.Histogram();
+      for (int i = 0; i < 9; i++) {
+         histogram.record(MS);
+      }
+      histogram.record(40 * MS);
+      Assert.assertEquals(1.024, histogram.percentileMs(50), 1e-9);
+      Assert.assertEquals(1.024, histogram.percentileMs(90), 1e-9);
+      //Bounded by the largest duration
+      Assert.assertEquals(40, histogram.percentileMs(100), 1e-9);
+      Assert.assertEquals(4.9, histogram.meanMs(), 1e-9);
+   }
+
+   @Test
+   public void phasesAreSummedPerCallAndPerPosition() {
+      FocusTimer timer = new FocusTimer();
+      for (int call = 0; call < 4; call++) {
+         timer.startCall();
+         timer.setLabel(call % 2 == 0 ? "Pos0" : "Pos1");
+         timer.add(FocusTimer.Phase.SNAP, 2 * MS);
+         timer.add(FocusTimer.Phase.SNAP, (call + 1) * MS);
+         timer.addMillis(FocusTimer.Phase.METRIC, 1.5);
+         Assert.assertEquals(3 + call, timer.getCurrentCallMs(FocusTimer.Phase.SNAP), 1e-9);
+         timer.endCall();
+      }
+      //A call without position is counted, but not in the histograms
+      timer.startCall();
+      timer.add(FocusTimer.Phase.STAGE, 7 * MS);
+      timer.endCall();
+
+      Assert.assertEquals(5, timer.getCallCount());
+      Assert.assertArrayEquals(new String[]{"Pos0", "Pos1"}, timer.getPositionLabels());
+      double[] last = timer.getLastCallMs();
+      Assert.assertEquals(7, last[FocusTimer.Phase.STAGE.ordinal()], 1e-9);
+      Assert.assertEquals(0, last[FocusTimer.Phase.SNAP.ordinal()], 0);
+      //Pos0 had the calls 0 and 2, Pos1 the calls 1 and 3
+      Assert.assertEquals(4, timer.getMeanMs("Pos0", "snap"), 1e-9);
+      Assert.assertEquals(5, timer.getMaxMs("Pos0", "snap"), 1e-9);
+      Assert.assertEquals(5, timer.getMeanMs("Pos1", "snap"), 1e-9);
+      Assert.assertEquals(1.5, timer.getMeanMs("Pos1", "metric"), 1e-9);
+      Assert.assertEquals(0, timer.getMeanMs("Pos1", "stage"), 0);
+      Assert.assertTrue(Double.isNaN(timer.getMeanMs("Pos2", "snap")));
+      Assert.assertTrue(Double.isNaN(timer.getMeanMs("Pos0", "unknown")));
+
+      timer.reset();
+      Assert.assertEquals(0, timer.getCallCount());
+      Assert.assertEquals(0, timer.getPositionLabels().length);
+   }
+
+   @Test
+   public void registrationReplacesThePreviousTimer() throws Exception {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(FocusTimer.OBJECT_NAME);
+      FocusTimer first = new FocusTimer();
+      FocusTimer second = new FocusTimer();
+      second.startCall();
+      second.endCall();
+      try {
+         FocusTimer.register(first);
+         Assert.assertEquals(0L, server.getAttribute(name, "CallCount"));
+         //A new plugin instance takes the name over
+         FocusTimer.register(second);
+         Assert.assertEquals(1L, server.getAttribute(name, "CallCount"));
+      } finally {
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+      }
+   }
+}
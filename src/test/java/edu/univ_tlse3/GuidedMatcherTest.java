@@ -0,0 +1,128 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.util.Random;
+
+public class GuidedMatcherTest {
+
+   private static final int POINTS = 60;
+   private static final double DX = 3.5;
+   private static final double DY = -2;
+   private static final double RADIUS = 10;
+
+   @BeforeClass
+   public static void loadOpenCV() {
+      DriftCorrection.loadOpenCV();
+   }
+
+   private static MatOfKeyPoint keypoints(double[][] places) {
+      KeyPoint[] points = new KeyPoint[places.length];
+      for (int i = 0; i < places.length; i++) {
+         points[i] = new KeyPoint((float) places[i][0], (float) places[i][1], 7);
+      }
+      return new MatOfKeyPoint(points);
+   }
+
+   //Random descriptors, binary ones (Hamming distance) or float ones (Euclidean distance)
+   private static Mat descriptors(int rows, boolean binary, long seed) {
+      Random random = new Random(seed);
+      Mat descriptors = new Mat(rows, 32, binary ? CvType.CV_8U : CvType.CV_32F);
+      for (int i = 0; i < rows; i++) {
+         for (int k = 0; k < 32; k++) {
+            descriptors.put(i, k, binary ? random.nextInt(256) : random.nextFloat());
+         }
+      }
+      return descriptors;
+   }
+
+   //Keypoints on a grid 30 px apart, the second image showing them moved by (DX, DY) with the same descriptors
+   private static void assertDisplacementIsRecovered(boolean binary) {
+      double[][] places1 = new double[POINTS][];
+      double[][] places2 = new double[POINTS][];
+      for (int i = 0; i < POINTS; i++) {
+         places1[i] = new double[]{20 + 30 * (i % 10), 20 + 30 * (i / 10)};
+         //Listed in reverse order so that the indices differ
+         places2[POINTS - 1 - i] = new double[]{places1[i][0] + DX, places1[i][1] + DY};
+      }
+      Mat descriptors1 = descriptors(POINTS, binary, 1);
+      Mat descriptors2 = new Mat(POINTS, 32, descriptors1.type());
+      for (int i = 0; i < POINTS; i++) {
+         descriptors1.row(i).copyTo(descriptors2.row(POINTS - 1 - i));
+      }
+      MatOfKeyPoint keypoints1 = keypoints(places1);
+      MatOfKeyPoint keypoints2 = keypoints(places2);
+      DMatch[] matches = GuidedMatcher.match(keypoints1, descriptors1, keypoints2, descriptors2, RADIUS).toArray();
+      Assert.assertEquals(POINTS, matches.length);
+      for (DMatch match : matches) {
+         Assert.assertEquals(POINTS - 1 - match.queryIdx, match.trainIdx);
+         Assert.assertEquals(0, match.distance, 1e-6);
+         Assert.assertEquals(DX, places2[match.trainIdx][0] - places1[match.queryIdx][0], 1e-6);
+         Assert.assertEquals(DY, places2[match.trainIdx][1] - places1[match.queryIdx][1], 1e-6);
+      }
+   }
+
+   //The best descriptor is out of the window : a worse one within it is taken, or none if there is no candidate
+   private static void assertOutOfWindowCandidatesAreRejected(boolean binary) {
+      Mat descriptors1 = descriptors(2, binary, 2);
+      Mat descriptors2 = new Mat(3, 32, descriptors1.type());
+      descriptors1.row(0).copyTo(descriptors2.row(0));
+      descriptors(1, binary, 3).copyTo(descriptors2.row(1));
+      descriptors1.row(1).copyTo(descriptors2.row(2));
+      MatOfKeyPoint keypoints1 = keypoints(new double[][]{{100, 100}, {300, 300}});
+      //Perfect partners moved by more than the radius, a different keypoint close to the first one
+      MatOfKeyPoint keypoints2 = keypoints(new double[][]{{100 + 2 * RADIUS, 100}, {104, 103}, {300, 300 + 1.5 * RADIUS}});
+      DMatch[] matches = GuidedMatcher.match(keypoints1, descriptors1, keypoints2, descriptors2, RADIUS).toArray();
+      Assert.assertEquals(1, matches.length);
+      Assert.assertEquals(0, matches[0].queryIdx);
+      Assert.assertEquals(1, matches[0].trainIdx);
+      Assert.assertTrue(matches[0].distance > 0);
+   }
+
+   @Test
+   public void hammingMatchingRecoversTheDisplacement() {
+      assertDisplacementIsRecovered(true);
+   }
+
+   @Test
+   public void euclideanMatchingRecoversTheDisplacement() {
+      assertDisplacementIsRecovered(false);
+   }
+
+   @Test
+   public void hammingCandidatesOutOfTheWindowAreRejected() {
+      assertOutOfWindowCandidatesAreRejected(true);
+   }
+
+   @Test
+   public void euclideanCandidatesOutOfTheWindowAreRejected() {
+      assertOutOfWindowCandidatesAreRejected(false);
+   }
+
+   @Test
+   public void smallRadiusOnALargeFrameMatches() {
+      //A 1 px radius across a 2048 px frame, the cells are sized by the number of keypoints
+      Mat descriptors = descriptors(2, true, 5);
+      MatOfKeyPoint keypoints1 = keypoints(new double[][]{{5, 5}, {2040, 2040}});
+      MatOfKeyPoint keypoints2 = keypoints(new double[][]{{5.2, 5}, {2040.3, 2040.2}});
+      DMatch[] matches = GuidedMatcher.match(keypoints1, descriptors, keypoints2, descriptors, 1).toArray();
+      Assert.assertEquals(2, matches.length);
+      for (DMatch match : matches) {
+         Assert.assertEquals(match.queryIdx, match.trainIdx);
+      }
+   }
+
+   @Test
+   public void descriptorsOfDifferentTypesAreNotMatched() {
+      MatOfKeyPoint keypoints = keypoints(new double[][]{{10, 10}});
+      Assert.assertTrue(GuidedMatcher.match(keypoints, descriptors(1, true, 4), keypoints,
+            descriptors(1, false, 4), RADIUS).empty());
+   }
+}
@@ -0,0 +1,60 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyBudgetTest {
+
+   private static final double STEP = 0.3;
+
+   @Test
+   public void unlimitedBudgetKeepsTheRange() {
+      LatencyBudget budget = new LatencyBudget();
+      budget.start(System.nanoTime(), 0);
+      budget.recordScan(10, 1000);
+      Assert.assertEquals(10, budget.fitRange(10, STEP, false), 0);
+      Assert.assertTrue(budget.fitsXY(0));
+   }
+
+   @Test
+   public void rangeIsReducedToTheSlicesWhichFit() {
+      LatencyBudget budget = new LatencyBudget();
+      //10 ms per slice, 100 ms left : at most 10 slices
+      budget.recordScan(10, 100);
+      budget.start(System.nanoTime(), 100);
+      double range = budget.fitRange(10, STEP, false);
+      Assert.assertTrue(range <= 9 * STEP + 1e-9);
+      Assert.assertTrue(range >= (LatencyBudget.MIN_SLICES - 1) * STEP - 1e-9);
+   }
+
+   @Test
+   public void timedOutEstimationIsNotTakenAsCheaper() {
+      LatencyBudget budget = new LatencyBudget();
+      budget.recordXY(10);
+      //Stopped after 50 ms : the estimation costs more than the 30 ms left
+      budget.recordXYTimeout(50);
+      budget.start(System.nanoTime(), 30);
+      Assert.assertFalse(budget.fitsXY(0));
+   }
+
+   @Test
+   public void deferredEstimationIsMadeAgain() {
+      LatencyBudget budget = new LatencyBudget();
+      budget.recordXY(1000);
+      int deferrals = 0;
+      int estimations = 0;
+      for (int call = 0; call < 3 * (LatencyBudget.MAX_DEFERRALS + 1); call++) {
+         budget.start(System.nanoTime(), 10);
+         if (budget.fitsXY(deferrals)) {
+            Assert.assertTrue(budget.isXYForced(deferrals));
+            budget.recordXY(1000);
+            deferrals = 0;
+            estimations++;
+         } else {
+            deferrals++;
+            Assert.assertTrue(deferrals <= LatencyBudget.MAX_DEFERRALS);
+         }
+      }
+      Assert.assertEquals(3, estimations);
+   }
+}
@@ -0,0 +1,46 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class MatScopeTest {
+
+   @BeforeClass
+   public static void loadOpenCV() {
+      nu.pattern.OpenCV.loadShared();
+   }
+
+   @Test
+   public void peakIsTheLargestMemoryHeld() {
+      MatScope scope = new MatScope();
+      Mat big = scope.track(new Mat(100, 100, CvType.CV_8UC1));
+      big.release();
+      scope.track(new Mat(10, 10, CvType.CV_8UC1));
+      scope.close();
+      Assert.assertEquals(100 * 100, scope.getPeakBytes());
+   }
+
+   @Test
+   public void nestedScopeCountsInThePeakOfItsParent() {
+      MatScope parent = new MatScope();
+      parent.track(new Mat(10, 10, CvType.CV_8UC1));
+      try (MatScope nested = new MatScope(parent)) {
+         Mat mat = nested.track(new Mat(100, 100, CvType.CV_8UC1));
+         Assert.assertFalse(mat.empty());
+      }
+      parent.close();
+      Assert.assertEquals(100 + 100 * 100, parent.getPeakBytes());
+   }
+
+   @Test
+   public void closedScopeReleasesItsMats() {
+      Mat mat;
+      try (MatScope scope = new MatScope()) {
+         mat = scope.track(new Mat(10, 10, CvType.CV_8UC1));
+      }
+      Assert.assertTrue(mat.empty());
+   }
+}
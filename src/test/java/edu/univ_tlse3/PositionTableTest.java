@@ -0,0 +1,100 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PositionTableTest {
+
+   @BeforeClass
+   public static void loadOpenCV() {
+      nu.pattern.OpenCV.loadShared();
+   }
+
+   private static PositionList positionList(double[]... places) {
+      PositionList positionList = new PositionList();
+      for (int i = 0; i < places.length; i++) {
+         MultiStagePosition position = new MultiStagePosition("XY", places[i][0], places[i][1], "Z", 0);
+         position.setLabel("Pos" + i);
+         positionList.addPosition(position);
+      }
+      return positionList;
+   }
+
+   @Test
+   public void visitFindsThePositionTheStageIsAt() {
+      PositionTable table = new PositionTable();
+      table.sync(positionList(new double[]{0, 0}, new double[]{100, 0}, new double[]{0, 100}));
+      Assert.assertEquals(3, table.size());
+      Assert.assertEquals(2, table.visit(0.5, 99.5));
+      Assert.assertEquals("Pos2", table.getLabel(2));
+      Assert.assertEquals(0, table.visit(0, 0));
+      Assert.assertEquals(0, table.getTimepoint(0));
+      Assert.assertEquals(0, table.visit(0, 0));
+      Assert.assertEquals(1, table.getTimepoint(0));
+   }
+
+   @Test
+   public void duplicatedPlacesAreTakenInListOrder() {
+      PositionTable table = new PositionTable();
+      table.sync(positionList(new double[]{0, 0}, new double[]{100, 0}, new double[]{100, 0}));
+      Assert.assertEquals(0, table.visit(0, 0));
+      Assert.assertEquals(1, table.visit(100, 0));
+      Assert.assertEquals(2, table.visit(100, 0));
+      Assert.assertEquals(0, table.visit(100, 0));
+   }
+
+   @Test
+   public void emptyListIsASinglePosition() {
+      PositionTable table = new PositionTable();
+      PositionList positionList = new PositionList();
+      table.sync(positionList);
+      Assert.assertEquals(1, table.size());
+      Assert.assertEquals(positionList.generateLabel(), table.getLabel(0));
+      Assert.assertEquals(0, table.visit(12, 34));
+      Assert.assertEquals(0, table.visit(56, 78));
+      Assert.assertEquals(2, table.getMinimumVisits());
+   }
+
+   @Test
+   public void historyKeepsTheLastTimePoints() {
+      PositionTable table = new PositionTable();
+      table.sync(positionList(new double[]{0, 0}));
+      for (int timepoint = 0; timepoint < PositionTable.HISTORY_SIZE + 2; timepoint++) {
+         table.record(0, timepoint, timepoint, 2 * timepoint, 3 * timepoint, -timepoint, -2 * timepoint);
+      }
+      Assert.assertEquals(PositionTable.HISTORY_SIZE, table.getHistorySize(0));
+      for (int k = 0; k < PositionTable.HISTORY_SIZE; k++) {
+         int timepoint = k + 2;
+         Assert.assertEquals(timepoint, table.getHistoryTimepoint(0, k));
+         Assert.assertEquals(timepoint, table.getHistory(0, k, 0), 0);
+         Assert.assertEquals(2 * timepoint, table.getHistory(0, k, 1), 0);
+         Assert.assertEquals(3 * timepoint, table.getHistory(0, k, 2), 0);
+         Assert.assertEquals(-timepoint, table.getHistory(0, k, 3), 0);
+         Assert.assertEquals(-2 * timepoint, table.getHistory(0, k, 4), 0);
+      }
+   }
+
+   @Test
+   public void droppedReferenceImagesAreReleased() {
+      List<Mat> released = new ArrayList<>();
+      PositionTable table = new PositionTable(released::add);
+      table.sync(positionList(new double[]{0, 0}, new double[]{100, 0}));
+      Mat first = new Mat();
+      table.setReferenceImage(1, first);
+      table.sync(positionList(new double[]{0, 0}, new double[]{100, 0}, new double[]{200, 0}));
+      Assert.assertEquals(1, released.size());
+      Assert.assertSame(first, released.get(0));
+      Mat second = new Mat();
+      table.setReferenceImage(2, second);
+      table.clear();
+      Assert.assertEquals(2, released.size());
+      Assert.assertSame(second, released.get(1));
+   }
+}
@@ -0,0 +1,55 @@
+package edu.univ_tlse3;
+
+import ij.process.FloatProcessor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReferenceStackTest {
+
+   private static final int WIDTH = 128;
+   private static final int HEIGHT = 64;
+   private static final double STEP = 0.3;
+
+   //Fringes moving with Z : the correlation of two slices is the cosine of their Z difference
+   private static FloatProcessor slice(double z) {
+      float[] pixels = new float[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            pixels[y * WIDTH + x] = (float) (1000 + 100 * Math.cos(2 * Math.PI * x / 32 + 0.5 * z));
+         }
+      }
+      return new FloatProcessor(WIDTH, HEIGHT, pixels);
+   }
+
+   //Slices from -3 to 3 um added in the order of an outward scan started at 0
+   private static ReferenceStack outwardStack() {
+      ReferenceStack stack = new ReferenceStack(WIDTH, HEIGHT);
+      stack.add(slice(0), 0);
+      for (int k = 1; k <= 10; k++) {
+         stack.add(slice(-k * STEP), -k * STEP);
+         stack.add(slice(k * STEP), k * STEP);
+      }
+      stack.setFocus(0);
+      return stack;
+   }
+
+   @Test
+   public void outwardStackRecoversTheOffsetBetweenSlices() {
+      double[] match = outwardStack().match(slice(0.45));
+      Assert.assertNotNull(match);
+      Assert.assertEquals(0.45, match[0], 0.05);
+      Assert.assertTrue(match[1] > 0.99);
+   }
+
+   @Test
+   public void outwardStackRecoversANegativeOffset() {
+      double[] match = outwardStack().match(slice(-1.1));
+      Assert.assertNotNull(match);
+      Assert.assertEquals(-1.1, match[0], 0.05);
+   }
+
+   @Test
+   public void snapBeyondTheStackIsNotMatched() {
+      Assert.assertNull(outwardStack().match(slice(3.3)));
+   }
+}
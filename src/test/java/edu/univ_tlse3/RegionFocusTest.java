@@ -0,0 +1,93 @@
+package edu.univ_tlse3;
+
+import ij.process.FloatProcessor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegionFocusTest {
+
+   private static final int WIDTH = 200;
+   private static final int HEIGHT = 100;
+   private static final double STEP = 0.3;
+   //Below a slice
+   private static final double TOLERANCE = 0.2;
+   private static final double[] Z_POSITIONS = BFAutofocus.calculateZPositions(6, STEP, 0);
+
+   //Focus of a tilted sample at the centre of a region of the field, pixels being 1 um
+   private static double tilted(double x, double y) {
+      return 0.005 * x + 0.01 * y;
+   }
+
+   //Checkerboard whose contrast is the lowest at the focus of each region of a 2x2 grid
+   private static FloatProcessor slice(double z, double[] foci) {
+      FloatProcessor processor = new FloatProcessor(WIDTH, HEIGHT);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            int region = (y * 2 / HEIGHT) * 2 + x * 2 / WIDTH;
+            double contrast = 10 + 20 * Math.abs(z - foci[region]);
+            processor.setf(x, y, (float) (1000 + ((x + y) % 2 == 0 ? contrast : -contrast)));
+         }
+      }
+      return processor;
+   }
+
+   private static RegionFocus scan(double[] foci) {
+      RegionFocus regions = new RegionFocus(2, 2, Z_POSITIONS.length, WIDTH, HEIGHT);
+      for (int i = 0; i < Z_POSITIONS.length; i++) {
+         FloatProcessor processor = slice(Z_POSITIONS[i], foci);
+         double wholeField = regions.add(i, processor);
+         Assert.assertEquals(processor.getStatistics().stdDev, wholeField, 1e-6 * wholeField);
+      }
+      return regions;
+   }
+
+   private static double[] tiltedFoci() {
+      return new double[]{tilted(50, 25), tilted(150, 25), tilted(50, 75), tilted(150, 75)};
+   }
+
+   @Test
+   public void eachRegionGetsItsOwnFocus() {
+      double[] expected = tiltedFoci();
+      double[] foci = scan(expected).getFoci(Z_POSITIONS, 0, Z_POSITIONS.length - 1);
+      Assert.assertEquals(expected.length, foci.length);
+      for (int region = 0; region < expected.length; region++) {
+         Assert.assertEquals(expected[region], foci[region], TOLERANCE);
+      }
+   }
+
+   @Test
+   public void modesGiveTheFocusOfTheirRegions() {
+      double[] expected = tiltedFoci();
+      RegionFocus regions = scan(expected);
+      regions.getFoci(Z_POSITIONS, 0, Z_POSITIONS.length - 1);
+      Assert.assertEquals((expected[1] + expected[2]) / 2, regions.getFocus(RegionFocus.MEDIAN, 0), TOLERANCE);
+      Assert.assertEquals(expected[3], regions.getFocus(RegionFocus.SELECTED_REGION, 3), TOLERANCE);
+      Assert.assertTrue(Double.isNaN(regions.getFocus(RegionFocus.SELECTED_REGION, 4)));
+      Assert.assertEquals(tilted(WIDTH / 2.0, HEIGHT / 2.0), regions.getFocus(RegionFocus.PLANE, 0), TOLERANCE);
+      double[] tilt = regions.getTilt();
+      Assert.assertEquals(0.005, tilt[0], TOLERANCE / WIDTH);
+      Assert.assertEquals(0.01, tilt[1], TOLERANCE / HEIGHT);
+   }
+
+   @Test
+   public void regionFocusedBeyondTheScanIsIgnored() {
+      double[] expected = tiltedFoci();
+      expected[0] = 5;
+      RegionFocus regions = scan(expected);
+      double[] foci = regions.getFoci(Z_POSITIONS, 0, Z_POSITIONS.length - 1);
+      Assert.assertTrue(Double.isNaN(foci[0]));
+      Assert.assertEquals(expected[2], regions.getFocus(RegionFocus.MEDIAN, 0), TOLERANCE);
+   }
+
+   @Test
+   public void fociAreLocatedOnTheAcquiredSlices() {
+      double[] expected = tiltedFoci();
+      RegionFocus regions = scan(expected);
+      //Scan stopped after the slice at 1.8 um
+      int last = (int) Math.round((1.8 - Z_POSITIONS[0]) / STEP);
+      double[] foci = regions.getFoci(Z_POSITIONS, 0, last);
+      for (int region = 0; region < expected.length; region++) {
+         Assert.assertEquals(expected[region], foci[region], TOLERANCE);
+      }
+   }
+}
@@ -0,0 +1,512 @@
+package edu.univ_tlse3;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * In-process microscope serving the slices of a bright-field Z-stack (e.g. BF.tif).
+ * The sample focal plane is a (possibly tilted) plane which drifts linearly with the simulated time,
+ * the lateral drift is applied by shifting the field of view over a mirrored tiling of the slice.
+ * Stage moves and snaps take a configurable time, so that throughput can be measured without hardware. The focus
+ * stage moves instantly or at a set speed ; a streaming camera renders each frame at the Z of the middle of its
+ * exposure.
+ */
+class SimulatedMicroscope implements Microscope {
+
+    static final String XY_STAGE = "SimXY";
+    static final String FOCUS_STAGE = "SimZ";
+    static final String CHANNEL_GROUP = "Channel";
+
+    private final short[][] slices;
+    private final int fullWidth;
+    private final int fullHeight;
+    private final double zStepUm;
+    private final int focusSlice;
+
+    //Sample
+    private double focusZUm = 0;
+    private double focusSlopeX = 0;
+    private double focusSlopeY = 0;
+    private double xDriftUmPerMin = 0;
+    private double yDriftUmPerMin = 0;
+    private double zDriftUmPerMin = 0;
+    private double elapsedMin = 0;
+
+    //Hardware
+    private double pixelSizeUm = 1;
+    private long xyStageLatencyMs = 0;
+    private long focusLatencyMs = 0;
+    private long cameraReadoutMs = 0;
+    private double referenceExposureMs = 50;
+    private double exposure = 50;
+    private int binning = 1;
+    private Rectangle roi;
+    private boolean autoShutter = true;
+    private boolean shutterOpen = false;
+    private List<String> channels = Arrays.asList("BF");
+    private String currentChannel = "BF";
+    private double x = 0;
+    private double y = 0;
+    private double focusSpeedUmPerMs = 0;
+    private double zFrom = 0;
+    private double zTo = 0;
+    private long zMoveStartNs = 0;
+    private long zMoveEndNs = 0;
+    private long xyReadyAtNs = 0;
+    private long focusReadyAtNs = 0;
+    private TaggedImage lastImage = null;
+    private long snapCount = 0;
+    private boolean streaming = false;
+    private long streamStartNs = 0;
+    private long streamedFrames = 0;
+    private long poppedFrames = 0;
+
+    //Acquisition
+    private final PositionList positionList = new PositionList();
+    private final SequenceSettings settings = new SequenceSettings();
+    private boolean acquisitionRunning = true;
+
+    public SimulatedMicroscope(ImageStack stack, double zStepUm) {
+        fullWidth = stack.getWidth();
+        fullHeight = stack.getHeight();
+        slices = new short[stack.getSize()][];
+        double minStd = Double.MAX_VALUE;
+        int minIndex = 0;
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = (short[]) stack.getProcessor(i + 1).convertToShortProcessor(false).getPixels();
+            double std = stack.getProcessor(i + 1).getStatistics().stdDev;
+            if (std < minStd) {
+                minStd = std;
+                minIndex = i;
+            }
+        }
+        //The slice with the lowest standard deviation is the one the autofocus is looking for
+        focusSlice = minIndex;
+        this.zStepUm = zStepUm;
+        roi = new Rectangle(0, 0, fullWidth, fullHeight);
+        settings.intervalMs = 60000;
+        settings.numFrames = 1;
+        settings.root = System.getProperty("java.io.tmpdir");
+        settings.prefix = "Simulation";
+    }
+
+    public static SimulatedMicroscope fromFile(String path) {
+        ImagePlus imp = IJ.openImage(path);
+        double spacing = imp.getCalibration().pixelDepth;
+        return new SimulatedMicroscope(imp.getStack(), spacing > 0 ? spacing : 0.3);
+    }
+
+    //Configuration of the simulation
+    public void setFocusPlane(double zUm, double slopeX, double slopeY) {
+        focusZUm = zUm;
+        focusSlopeX = slopeX;
+        focusSlopeY = slopeY;
+    }
+
+    public void setDrift(double xUmPerMin, double yUmPerMin, double zUmPerMin) {
+        xDriftUmPerMin = xUmPerMin;
+        yDriftUmPerMin = yUmPerMin;
+        zDriftUmPerMin = zUmPerMin;
+    }
+
+    public void setLatencies(long xyStageMs, long focusMs, long cameraReadoutMs) {
+        xyStageLatencyMs = xyStageMs;
+        focusLatencyMs = focusMs;
+        this.cameraReadoutMs = cameraReadoutMs;
+    }
+
+    //Speed of the focus moves, 0 for instant moves
+    public void setFocusSpeed(double umPerS) {
+        focusSpeedUmPerMs = umPerS / 1000;
+    }
+
+    //Exposure giving the raw intensities of the stack ; other exposures scale the signal
+    public void setReferenceExposure(double exposureMs) {
+        referenceExposureMs = exposureMs;
+    }
+
+    public void setPixelSizeUm(double pixelSizeUm) {
+        this.pixelSizeUm = pixelSizeUm;
+    }
+
+    public void setChannels(String... channelNames) {
+        channels = Arrays.asList(channelNames);
+        currentChannel = channelNames[0];
+    }
+
+    public void setIntervalMs(double intervalMs) {
+        settings.intervalMs = intervalMs;
+    }
+
+    public void setNumFrames(int numFrames) {
+        settings.numFrames = numFrames;
+    }
+
+    public void setSavingRoot(String root, String prefix) {
+        settings.root = root;
+        settings.prefix = prefix;
+    }
+
+    public void setAcquisitionRunning(boolean running) {
+        acquisitionRunning = running;
+    }
+
+    public void addPosition(String label, double xUm, double yUm, double zUm) {
+        positionList.addPosition(new MultiStagePosition(XY_STAGE, xUm, yUm, FOCUS_STAGE, zUm));
+        positionList.setLabel(positionList.getNumberOfPositions() - 1, label);
+    }
+
+    //Move to a position of the list, as the acquisition engine does before calling the autofocus
+    public void goToPosition(int index) throws Exception {
+        MultiStagePosition position = positionList.getPosition(index);
+        setXYPosition(position.getX(), position.getY());
+        setZPosition(position.getZ());
+        waitForXYStage();
+        waitForFocus();
+    }
+
+    public synchronized void advanceTime(double ms) {
+        elapsedMin += ms / 60000;
+    }
+
+    //Ground truth
+    public synchronized double getTrueFocusZ(double xUm, double yUm) {
+        return focusZUm + focusSlopeX * xUm + focusSlopeY * yUm + zDriftUmPerMin * elapsedMin;
+    }
+
+    public synchronized double getTrueXDrift() {
+        return xDriftUmPerMin * elapsedMin;
+    }
+
+    public synchronized double getTrueYDrift() {
+        return yDriftUmPerMin * elapsedMin;
+    }
+
+    public synchronized long getSnapCount() {
+        return snapCount;
+    }
+
+    public int getFocusSlice() {
+        return focusSlice;
+    }
+
+    //Microscope
+    @Override
+    public synchronized double getPixelSizeUm() {
+        return pixelSizeUm * binning;
+    }
+
+    @Override
+    public SequenceSettings getAcquisitionSettings() {
+        return settings;
+    }
+
+    @Override
+    public boolean isAcquisitionRunning() {
+        return acquisitionRunning;
+    }
+
+    @Override
+    public PositionList getPositionList() {
+        return positionList;
+    }
+
+    @Override
+    public synchronized Rectangle getROI() {
+        return new Rectangle(roi);
+    }
+
+    @Override
+    public synchronized void setROI(Rectangle roi) throws Exception {
+        Rectangle full = new Rectangle(0, 0, fullWidth / binning, fullHeight / binning);
+        if (roi.isEmpty() || !full.contains(roi)) {
+            throw new Exception("ROI " + roi + " is outside of the sensor " + full);
+        }
+        this.roi = new Rectangle(roi);
+    }
+
+    @Override
+    public synchronized double getExposure() {
+        return exposure;
+    }
+
+    @Override
+    public synchronized void setExposure(double exposure) {
+        this.exposure = exposure;
+    }
+
+    @Override
+    public synchronized int getBinning() {
+        return binning;
+    }
+
+    //Binning sums the pixels and resets the ROI to the full frame
+    @Override
+    public synchronized void setBinning(int binning) throws Exception {
+        if (binning < 1 || fullWidth / binning == 0 || fullHeight / binning == 0) {
+            throw new Exception("Binning " + binning + " is not supported");
+        }
+        this.binning = binning;
+        roi = new Rectangle(0, 0, fullWidth / binning, fullHeight / binning);
+    }
+
+    @Override
+    public synchronized boolean getAutoShutter() {
+        return autoShutter;
+    }
+
+    @Override
+    public synchronized void setAutoShutter(boolean autoShutter) {
+        this.autoShutter = autoShutter;
+    }
+
+    @Override
+    public synchronized void setShutterOpen(boolean open) {
+        shutterOpen = open;
+    }
+
+    @Override
+    public void waitForCamera() {
+    }
+
+    @Override
+    public void snapImage() throws Exception {
+        TaggedImage image;
+        synchronized (this) {
+            image = render(zAt(System.nanoTime()));
+            snapCount++;
+        }
+        sleepMs((long) exposure + cameraReadoutMs);
+        synchronized (this) {
+            lastImage = image;
+        }
+    }
+
+    @Override
+    public synchronized TaggedImage getTaggedImage() throws Exception {
+        if (lastImage == null) {
+            throw new Exception("No image has been snapped");
+        }
+        return lastImage;
+    }
+
+    @Override
+    public synchronized void startContinuousSequenceAcquisition() {
+        streaming = true;
+        streamStartNs = System.nanoTime();
+        streamedFrames = 0;
+        poppedFrames = 0;
+    }
+
+    @Override
+    public synchronized void stopSequenceAcquisition() {
+        streamedFrames = getStreamedFrames();
+        streaming = false;
+    }
+
+    @Override
+    public synchronized int getRemainingImageCount() {
+        return (int) (getStreamedFrames() - poppedFrames);
+    }
+
+    @Override
+    public synchronized TaggedImage popNextTaggedImage() throws Exception {
+        if (getRemainingImageCount() == 0) {
+            throw new Exception("The circular buffer is empty");
+        }
+        long exposureNs = (long) (exposure * 1e6);
+        long frameNs = streamStartNs + poppedFrames * getFramePeriodNs() + exposureNs / 2;
+        TaggedImage image = render(zAt(frameNs));
+        image.tags.put("ElapsedTime-ms", (frameNs - streamStartNs) / 1e6);
+        poppedFrames++;
+        snapCount++;
+        return image;
+    }
+
+    //Frames whose exposure has ended
+    private long getStreamedFrames() {
+        if (!streaming) {
+            return streamedFrames;
+        }
+        long exposureNs = (long) (exposure * 1e6);
+        return Math.max(0, (System.nanoTime() - streamStartNs - exposureNs) / getFramePeriodNs() + 1);
+    }
+
+    private long getFramePeriodNs() {
+        return Math.max(1000000, (long) ((exposure + cameraReadoutMs) * 1e6));
+    }
+
+    @Override
+    public String getChannelGroup() {
+        return CHANNEL_GROUP;
+    }
+
+    @Override
+    public synchronized String getCurrentChannel() {
+        return currentChannel;
+    }
+
+    @Override
+    public synchronized Object getChannelGroupState() {
+        return currentChannel;
+    }
+
+    @Override
+    public synchronized void setChannel(String channel) throws Exception {
+        if (!channels.contains(channel)) {
+            throw new Exception("Preset " + channel + " does not exist in group " + CHANNEL_GROUP);
+        }
+        currentChannel = channel;
+    }
+
+    @Override
+    public synchronized void restoreChannelGroupState(Object state) {
+        currentChannel = (String) state;
+    }
+
+    @Override
+    public synchronized double getXPosition() {
+        return x;
+    }
+
+    @Override
+    public synchronized double getYPosition() {
+        return y;
+    }
+
+    @Override
+    public synchronized void setXYPosition(double x, double y) {
+        this.x = x;
+        this.y = y;
+        xyReadyAtNs = System.nanoTime() + xyStageLatencyMs * 1000000;
+    }
+
+    @Override
+    public void waitForXYStage() throws InterruptedException {
+        sleepUntil(xyReadyAtNs);
+    }
+
+    @Override
+    public synchronized double getZPosition() {
+        return zAt(System.nanoTime());
+    }
+
+    @Override
+    public synchronized void setZPosition(double z) {
+        long now = System.nanoTime();
+        zFrom = zAt(now);
+        zTo = z;
+        zMoveStartNs = now;
+        zMoveEndNs = now + (focusSpeedUmPerMs > 0 ? (long) (Math.abs(zTo - zFrom) / focusSpeedUmPerMs * 1e6) : 0);
+        focusReadyAtNs = zMoveEndNs + focusLatencyMs * 1000000;
+    }
+
+    //Z of the focus stage at a time of the last move
+    private double zAt(long ns) {
+        if (ns >= zMoveEndNs) {
+            return zTo;
+        } else if (ns <= zMoveStartNs) {
+            return zFrom;
+        }
+        return zFrom + (zTo - zFrom) * (ns - zMoveStartNs) / (zMoveEndNs - zMoveStartNs);
+    }
+
+    @Override
+    public void waitForFocus() throws InterruptedException {
+        sleepUntil(focusReadyAtNs);
+    }
+
+    @Override
+    public synchronized boolean isFocusBusy() {
+        return System.nanoTime() < focusReadyAtNs;
+    }
+
+    @Override
+    public Datastore createStackStore(String path) {
+        return null;
+    }
+
+    @Override
+    public Image convertImage(TaggedImage taggedImage, int zIndex, int timepoint) {
+        throw new UnsupportedOperationException("The simulated microscope can not create Micro-Manager images");
+    }
+
+    @Override
+    public void clearCircularBuffer() {
+    }
+
+    @Override
+    public void displayImage(TaggedImage taggedImage) {
+    }
+
+    //Image formation
+    private TaggedImage render(double z) throws JSONException {
+        int slice = focusSlice + (int) Math.round((z - getTrueFocusZ(x, y)) / zStepUm);
+        slice = Math.max(0, Math.min(slices.length - 1, slice));
+        short[] source = slices[slice];
+        int xOffset = (int) Math.round((x - getTrueXDrift()) / pixelSizeUm);
+        int yOffset = (int) Math.round((y - getTrueYDrift()) / pixelSizeUm);
+        double gain = shutterOpen || autoShutter ? exposure / referenceExposureMs : 0;
+        short[] pixels = new short[roi.width * roi.height];
+        for (int row = 0; row < roi.height; row++) {
+            for (int col = 0; col < roi.width; col++) {
+                double sum = 0;
+                for (int binRow = 0; binRow < binning; binRow++) {
+                    int sourceRow = mirror((roi.y + row) * binning + binRow + yOffset, fullHeight);
+                    for (int binCol = 0; binCol < binning; binCol++) {
+                        int sourceCol = mirror((roi.x + col) * binning + binCol + xOffset, fullWidth);
+                        sum += source[sourceRow * fullWidth + sourceCol] & 0xffff;
+                    }
+                }
+                pixels[row * roi.width + col] = (short) Math.min(65535, Math.round(sum * gain));
+            }
+        }
+        JSONObject tags = new JSONObject();
+        tags.put("Width", roi.width);
+        tags.put("Height", roi.height);
+        tags.put("PixelType", "GRAY16");
+        tags.put("BitDepth", 16);
+        tags.put("Camera", "SimCamera");
+        tags.put("Exposure-ms", exposure);
+        tags.put("Binning", binning);
+        tags.put("XPositionUm", x);
+        tags.put("YPositionUm", y);
+        tags.put("ZPositionUm", z);
+        tags.put(CHANNEL_GROUP, currentChannel);
+        return new TaggedImage(pixels, tags);
+    }
+
+    //Index into a mirrored tiling of [0, size[
+    private static int mirror(int index, int size) {
+        int period = 2 * size;
+        int i = ((index % period) + period) % period;
+        return i < size ? i : period - 1 - i;
+    }
+
+    private static void sleepUntil(long readyAtNs) throws InterruptedException {
+        long remainingNs = readyAtNs - System.nanoTime();
+        if (remainingNs > 0) {
+            Thread.sleep(remainingNs / 1000000, (int) (remainingNs % 1000000));
+        }
+    }
+
+    private static void sleepMs(long ms) throws InterruptedException {
+        if (ms > 0) {
+            Thread.sleep(ms);
+        }
+    }
+}
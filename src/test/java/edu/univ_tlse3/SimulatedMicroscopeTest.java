@@ -0,0 +1,238 @@
+package edu.univ_tlse3;
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.*;
+import java.io.File;
+
+public class SimulatedMicroscopeTest {
+
+   private static final int POSITIONS = 3;
+   private static final int TIMEPOINTS = 3;
+   private static final double INTERVAL_MS = 60000;
+   //Full scans of about 30 slices with 1 ms device latencies, on a slow build machine
+   private static final double MAX_MS_PER_POSITION = 1000;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private SimulatedMicroscope microscope;
+   private BFAutofocus autofocus;
+
+   @Before
+   public void setUp() throws Exception {
+      String root = System.getProperty("user.dir") + "/src/main/resources/";
+      microscope = SimulatedMicroscope.fromFile(root + "BF.tif");
+      microscope.setReferenceExposure(1);
+      microscope.setLatencies(1, 1, 1);
+      microscope.setDrift(1, -1, 0.3);
+      microscope.setIntervalMs(INTERVAL_MS);
+      microscope.setNumFrames(TIMEPOINTS);
+      microscope.setSavingRoot(folder.getRoot().getAbsolutePath(), "Simulation");
+      for (int p = 0; p < POSITIONS; p++) {
+         microscope.addPosition("Pos" + p, 100 + 200 * p, 100, 0);
+      }
+
+      autofocus = new BFAutofocus();
+      autofocus.setMicroscope(microscope);
+      autofocus.setPropertyValue("Exposure", "1");
+      autofocus.setPropertyValue("ShowImages", "No");
+      autofocus.setPropertyValue("SaveImages", "No");
+      autofocus.setPropertyValue("Z offset", "0");
+   }
+
+   @Test
+   public void multiPositionTimelapseFindsFocus() throws Exception {
+      runTimelapse();
+   }
+
+   @Test
+   public void warmUpThenTimelapseFindsFocus() throws Exception {
+      autofocus.warmUp();
+      runTimelapse();
+   }
+
+   @Test
+   public void throughputStaysWithinBound() throws Exception {
+      autofocus.warmUp();
+      runTimelapse(1);
+      long start = System.nanoTime();
+      runTimelapse();
+      double msPerPosition = (System.nanoTime() - start) / 1e6 / (POSITIONS * TIMEPOINTS);
+      Assert.assertTrue("ms per position : " + msPerPosition, msPerPosition < MAX_MS_PER_POSITION);
+   }
+
+   @Test
+   public void outwardScanFindsFocusWithFewerSnaps() throws Exception {
+      autofocus.setPropertyValue("Z scan mode", ZScan.OUTWARD);
+      runTimelapse();
+      Assert.assertTrue(microscope.getSnapCount() < POSITIONS * TIMEPOINTS * 20);
+   }
+
+   @Test
+   public void serpentineScanWithBacklashFindsFocus() throws Exception {
+      autofocus.setPropertyValue("Serpentine Z scan", "Yes");
+      autofocus.setPropertyValue("Z backlash approach (um)", "2");
+      autofocus.setPropertyValue("Calibrate focus settle time", "Yes");
+      runTimelapse();
+   }
+
+   @Test
+   public void continuousSweepFindsFocus() throws Exception {
+      //A frame every 2 ms, about 0.2 um apart
+      microscope.setFocusSpeed(100);
+      autofocus.setPropertyValue("Z scan mode", ZScan.SWEEP);
+      runTimelapse();
+   }
+
+   @Test
+   public void continuousSweepWithRegionGridFindsFocus() throws Exception {
+      microscope.setFocusSpeed(100);
+      autofocus.setPropertyValue("Z scan mode", ZScan.SWEEP);
+      //The right half of the field is focused with the whole field
+      autofocus.setPropertyValue("Focus region columns", "2");
+      autofocus.setPropertyValue("Focus region rows", "1");
+      autofocus.setPropertyValue("Focus from regions", "Selected region");
+      autofocus.setPropertyValue("Selected focus region (row-major index)", "1");
+      runTimelapse();
+   }
+
+   @Test
+   public void sequentialMovesWithoutDeadbandsFindFocus() throws Exception {
+      autofocus.setPropertyValue("Move XY and Z together", "No");
+      autofocus.setPropertyValue("XY deadband (um)", "0");
+      autofocus.setPropertyValue("Z deadband (um)", "0");
+      runTimelapse();
+   }
+
+   @Test
+   public void automaticFocusRoiFindsFocusAndRestoresRoi() throws Exception {
+      autofocus.setPropertyValue("CropFactor", "0.5");
+      autofocus.setPropertyValue("Place cropped ROI on most textured region", "Yes");
+      Rectangle fullFrame = microscope.getROI();
+      runTimelapse();
+      Assert.assertEquals(fullFrame, microscope.getROI());
+   }
+
+   @Test
+   public void binnedScanFindsFocusAndRestoresCamera() throws Exception {
+      autofocus.setPropertyValue("Z scan binning", "2");
+      Rectangle fullFrame = microscope.getROI();
+      runTimelapse();
+      Assert.assertEquals(1, microscope.getBinning());
+      Assert.assertEquals(fullFrame, microscope.getROI());
+   }
+
+   @Test
+   public void autoSelectedDriftEstimatorFollowsXYDrift() throws Exception {
+      autofocus.setPropertyValue("Auto-select drift algorithm", "Yes");
+      //The reference image is taken off focus, where bright-field images have texture
+      autofocus.setPropertyValue("Z offset", "-1");
+      runTimelapse();
+      //The sample drifts by (1, -1) um per interval, the last position was corrected at the last time point
+      Assert.assertEquals(500 + (TIMEPOINTS - 1), microscope.getXPosition(), 1);
+      Assert.assertEquals(100 - (TIMEPOINTS - 1), microscope.getYPosition(), 1);
+   }
+
+   @Test
+   public void pyramidDriftEstimatorFollowsXYDrift() throws Exception {
+      autofocus.setPropertyValue("Feature detector algorithm", "Coarse-to-fine pyramid");
+      autofocus.setPropertyValue("Z offset", "-1");
+      runTimelapse();
+      Assert.assertEquals(500 + (TIMEPOINTS - 1), microscope.getXPosition(), 1);
+      Assert.assertEquals(100 - (TIMEPOINTS - 1), microscope.getYPosition(), 1);
+   }
+
+   @Test
+   public void singleSnapEstimationFindsFocusWithFewerSnaps() throws Exception {
+      autofocus.setPropertyValue("Single-snap Z from reference stack", "Yes");
+      //The snaps are compared off focus, where bright-field images have texture, and XY is kept on the reference
+      autofocus.setPropertyValue("Z offset", "-1");
+      autofocus.setPropertyValue("Feature detector algorithm", "Phase correlation");
+      runTimelapse();
+      Assert.assertTrue(microscope.getSnapCount() < POSITIONS * TIMEPOINTS * 20);
+   }
+
+   @Test
+   public void earlyStoppedScansAreNotReferenceStacks() throws Exception {
+      autofocus.setPropertyValue("Single-snap Z from reference stack", "Yes");
+      autofocus.setPropertyValue("Z scan mode", ZScan.OUTWARD);
+      runTimelapse();
+      long withSingleSnap = microscope.getSnapCount();
+      //Every call scans, as without single-snap estimation
+      setUp();
+      autofocus.setPropertyValue("Z scan mode", ZScan.OUTWARD);
+      runTimelapse();
+      Assert.assertEquals(microscope.getSnapCount(), withSingleSnap);
+   }
+
+   @Test
+   public void focusMapScansOnlyAnchorPositions() throws Exception {
+      microscope.setFocusPlane(0, 0.002, 0);
+      autofocus.setPropertyValue("Focus map anchor every N positions (0 = off)", "2");
+      runTimelapse();
+      //Pos1 is scanned at its first time point only
+      Assert.assertTrue(microscope.getSnapCount() < POSITIONS * TIMEPOINTS * 30);
+   }
+
+   @Test
+   public void regionGridFindsFocus() throws Exception {
+      autofocus.setPropertyValue("Focus region columns", "3");
+      autofocus.setPropertyValue("Focus region rows", "2");
+      autofocus.setPropertyValue("Focus from regions", "Median of regions");
+      runTimelapse();
+   }
+
+   @Test
+   public void latencyBudgetReducesTheScans() throws Exception {
+      //A few tens of ms per position, less than a full scan takes
+      autofocus.setPropertyValue("Time budget (% of interval, 0 = none)", "0.1");
+      runTimelapse();
+      Assert.assertTrue(microscope.getSnapCount() < POSITIONS * TIMEPOINTS * 20);
+   }
+
+   @Test
+   public void driftPredictionFindsFocusWithFewerSnaps() throws Exception {
+      autofocus.setPropertyValue("Predict drift between time points", "Yes");
+      microscope.setNumFrames(2 * TIMEPOINTS);
+      runTimelapse(2 * TIMEPOINTS);
+      Assert.assertTrue(microscope.getSnapCount() < POSITIONS * 2 * TIMEPOINTS * 25);
+   }
+
+   @Test
+   public void bestSliceRetentionSavesOneSliceAndTheFocusCurve() throws Exception {
+      autofocus.setPropertyValue("SaveImages", "Yes");
+      autofocus.setPropertyValue("Saved slices", "Best slice");
+      autofocus.setPropertyValue("Saved images binning", "2");
+      runTimelapse();
+      ImagePlus slices = IJ.openImage(new File(folder.getRoot(), "Pos1_T2_slices.tif").getPath());
+      Assert.assertEquals(1, slices.getStackSize());
+      Assert.assertEquals(microscope.getROI().width / 2, slices.getWidth());
+      Assert.assertTrue(new File(folder.getRoot(), "Pos1_T2_focus.csv").exists());
+   }
+
+   private void runTimelapse() throws Exception {
+      runTimelapse(TIMEPOINTS);
+   }
+
+   private void runTimelapse(int timepoints) throws Exception {
+      long snaps = microscope.getSnapCount();
+      for (int t = 0; t < timepoints; t++) {
+         for (int p = 0; p < POSITIONS; p++) {
+            microscope.goToPosition(p);
+            double focus = autofocus.fullFocus();
+            double expected = microscope.getTrueFocusZ(100 + 200 * p, 100);
+            Assert.assertEquals("Position " + p + " at time point " + t, expected, focus, 0.31);
+         }
+         microscope.advanceTime(INTERVAL_MS);
+      }
+      //Every call snaps at least once
+      Assert.assertTrue(microscope.getSnapCount() - snaps >= POSITIONS * timepoints);
+   }
+}
@@ -0,0 +1,66 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class StageMotionTest {
+
+   private FakeMicroscope microscope;
+   private StageMotion stageMotion;
+
+   @Before
+   public void setUp() {
+      microscope = new FakeMicroscope();
+      FocusTimer timer = new FocusTimer();
+      stageMotion = new StageMotion(microscope, new FocusStage(microscope, timer), timer);
+   }
+
+   @Test
+   public void overlappedMoveRunsZWhileXYTravels() throws Exception {
+      stageMotion.setOverlap(true);
+      stageMotion.moveTo(10, 20, 3);
+      Assert.assertEquals(Arrays.asList("setXYPosition", "setZPosition", "waitForFocus", "waitForXYStage"),
+            microscope.calls);
+      Assert.assertEquals(10, microscope.x, 0);
+      Assert.assertEquals(20, microscope.y, 0);
+      Assert.assertEquals(3, microscope.z, 0);
+   }
+
+   @Test
+   public void sequentialMoveWaitsForXYBeforeZ() throws Exception {
+      stageMotion.setOverlap(false);
+      stageMotion.moveTo(10, 20, 3);
+      Assert.assertEquals(Arrays.asList("setXYPosition", "waitForXYStage", "setZPosition", "waitForFocus"),
+            microscope.calls);
+   }
+
+   @Test
+   public void movesWithinTheDeadbandsAreNotSent() throws Exception {
+      stageMotion.setDeadbands(0.1, 0.01);
+      stageMotion.moveTo(0.05, -0.05, 0.005);
+      Assert.assertEquals(Collections.emptyList(), microscope.calls);
+      Assert.assertEquals(2, stageMotion.getSkippedMoves());
+
+      //Each axis is checked on its own
+      stageMotion.moveTo(0.2, 0, 0.005);
+      Assert.assertEquals(Arrays.asList("setXYPosition", "waitForXYStage"), microscope.calls);
+      Assert.assertEquals(3, stageMotion.getSkippedMoves());
+      microscope.calls.clear();
+      stageMotion.moveZ(0.02);
+      Assert.assertEquals(Arrays.asList("setZPosition", "waitForFocus"), microscope.calls);
+      Assert.assertEquals(0.02, microscope.z, 0);
+   }
+
+   @Test
+   public void movesAreAlwaysSentWithoutDeadband() throws Exception {
+      stageMotion.moveTo(0, 0, 0);
+      stageMotion.moveXY(0, 0);
+      Assert.assertEquals(2, microscope.count("setXYPosition"));
+      Assert.assertEquals(1, microscope.count("setZPosition"));
+      Assert.assertEquals(0, stageMotion.getSkippedMoves());
+   }
+}
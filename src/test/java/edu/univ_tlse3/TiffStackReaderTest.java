@@ -0,0 +1,68 @@
+package edu.univ_tlse3;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ShortProcessor;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TiffStackReaderTest {
+
+   private static final int WIDTH = 24;
+   private static final int HEIGHT = 16;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static short[] plane(int index) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (index * 1000 + i);
+      }
+      return pixels;
+   }
+
+   private static void save(File file, int firstPlane, int planes) {
+      ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+      for (int i = 0; i < planes; i++) {
+         stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, plane(firstPlane + i), null));
+      }
+      Assert.assertTrue(new FileSaver(new ImagePlus(file.getName(), stack)).saveAsTiffStack(file.getPath()));
+   }
+
+   @Test
+   public void planesOfAStackFileAreReadInOrder() throws IOException {
+      File file = new File(folder.getRoot(), "Pos0_T0.tif");
+      save(file, 0, 4);
+      TiffStackReader reader = new TiffStackReader(file);
+      Assert.assertEquals(4, reader.getNumberOfPlanes());
+      for (int i = 3; i >= 0; i--) {
+         Assert.assertEquals(WIDTH, reader.getWidth(i));
+         Assert.assertEquals(HEIGHT, reader.getHeight(i));
+         Assert.assertArrayEquals(plane(i), reader.readPlane(i));
+      }
+   }
+
+   @Test
+   public void planesOfADatastoreFollowTheFileNames() throws IOException {
+      File store = folder.newFolder("Pos0_T1");
+      save(new File(store, "images_2.tif"), 2, 3);
+      save(new File(store, "images_1.tif"), 0, 2);
+      TiffStackReader reader = new TiffStackReader(store);
+      Assert.assertEquals(5, reader.getNumberOfPlanes());
+      for (int i = 0; i < 5; i++) {
+         Assert.assertArrayEquals(plane(i), reader.readPlane(i));
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void emptyDatastoreIsRejected() throws IOException {
+      new TiffStackReader(folder.newFolder("Pos0_T2"));
+   }
+}
@@ -0,0 +1,105 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+public class TiledFeaturesTest {
+
+   private static final int SIZE = 640;
+   private static final int SHIFT_X = 7;
+   private static final int SHIFT_Y = -5;
+   private static Mat reference;
+   private static Mat shifted;
+
+   @BeforeClass
+   public static void setUp() {
+      DriftCorrection.loadOpenCV();
+      //Smoothed noise, the second image showing it moved by the shift
+      Core.setRNGSeed(7);
+      Mat noise = new Mat(SIZE + 40, SIZE + 40, CvType.CV_32F);
+      Core.randn(noise, 0, 1);
+      Imgproc.GaussianBlur(noise, noise, new Size(0, 0), 2);
+      Mat texture = new Mat();
+      Core.normalize(noise, texture, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
+      reference = texture.submat(new Rect(20, 20, SIZE, SIZE)).clone();
+      shifted = texture.submat(new Rect(20 - SHIFT_X, 20 - SHIFT_Y, SIZE, SIZE)).clone();
+   }
+
+   private static double[] drift(boolean tiled) {
+      return DriftCorrection.driftCorrection(reference, shifted, 1, 1, 100, FeatureDetector.ORB,
+            DescriptorExtractor.ORB, DescriptorMatcher.FLANNBASED, DriftCorrection.MODE, tiled);
+   }
+
+   @Test
+   public void tiledDetectionGivesTheDriftOfSerialDetection() {
+      double[] serial = drift(false);
+      double[] tiled = drift(true);
+      Assert.assertEquals(SHIFT_X, Math.abs(serial[DriftCorrection.X_DRIFT]), 0.5);
+      Assert.assertEquals(Math.abs(SHIFT_Y), Math.abs(serial[DriftCorrection.Y_DRIFT]), 0.5);
+      Assert.assertEquals(serial[DriftCorrection.X_DRIFT], tiled[DriftCorrection.X_DRIFT], 0.5);
+      Assert.assertEquals(serial[DriftCorrection.Y_DRIFT], tiled[DriftCorrection.Y_DRIFT], 0.5);
+   }
+
+   @Test
+   public void tilesCoverTheFrameWithoutDuplicates() throws Exception {
+      Assert.assertEquals(4, TiledFeatures.getCores(SIZE, SIZE, 4).size());
+      TiledFeatures.Features tiles = TiledFeatures.detectAndDescribe(FeatureDetector.BRISK,
+            DescriptorExtractor.BRISK, 4, reference)[0];
+      Assert.assertFalse(tiles.keypoints.empty());
+      Assert.assertEquals(tiles.keypoints.rows(), tiles.descriptors.rows());
+      //Keypoints of the overlaps are kept by a single tile, in frame coordinates
+      Set<String> places = new HashSet<>();
+      for (KeyPoint keypoint : tiles.keypoints.toArray()) {
+         Assert.assertTrue(keypoint.pt.x >= 0 && keypoint.pt.x < SIZE && keypoint.pt.y >= 0 && keypoint.pt.y < SIZE);
+         Assert.assertTrue(places.add(keypoint.pt.x + "," + keypoint.pt.y + "," + keypoint.octave + ","
+               + keypoint.size));
+      }
+   }
+
+   @Test
+   public void failedTileIsReportedAndThePoolStaysUsable() throws Exception {
+      try {
+         //ORB only takes 8 bits images
+         TiledFeatures.detectAndDescribe(FeatureDetector.ORB, DescriptorExtractor.ORB, 4, reference,
+               new Mat(SIZE, SIZE, CvType.CV_32F, new Scalar(0)), shifted);
+         Assert.fail("The tiles of the float image should fail");
+      } catch (ExecutionException e) {
+         //The tiles of the other images are collected and released
+      }
+      TiledFeatures.Features[] features = TiledFeatures.detectAndDescribe(FeatureDetector.ORB,
+            DescriptorExtractor.ORB, 4, reference, shifted);
+      Assert.assertFalse(features[1].keypoints.empty());
+   }
+
+   @Test
+   public void poolIsReusedUntilShutdown() throws Exception {
+      TiledFeatures.detectAndDescribe(FeatureDetector.ORB, DescriptorExtractor.ORB, 4, reference);
+      ExecutorService pool = TiledFeatures.getPool();
+      TiledFeatures.detectAndDescribe(FeatureDetector.ORB, DescriptorExtractor.ORB, 4, reference, shifted);
+      Assert.assertSame(pool, TiledFeatures.getPool());
+
+      TiledFeatures.shutdown();
+      Assert.assertTrue(pool.isShutdown());
+      TiledFeatures.Features[] features = TiledFeatures.detectAndDescribe(FeatureDetector.ORB,
+            DescriptorExtractor.ORB, 4, reference);
+      Assert.assertFalse(features[0].keypoints.empty());
+      Assert.assertNotSame(pool, TiledFeatures.getPool());
+   }
+}
@@ -0,0 +1,56 @@
+package edu.univ_tlse3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZScanTest {
+
+   //Focus metric with its minimum at slice 20 of 34
+   private static double metric(int slice) {
+      return 100 + (slice - 20) * (slice - 20);
+   }
+
+   private static ZScan run(String mode, int startIndex) {
+      ZScan scan = new ZScan(34, startIndex, mode, 10);
+      for (int i = scan.next(); i >= 0; i = scan.next()) {
+         scan.record(i, metric(i));
+      }
+      return scan;
+   }
+
+   @Test
+   public void fullScanAcquiresEverySlice() {
+      ZScan scan = run(ZScan.FULL, 17);
+      Assert.assertEquals(34, scan.getNumberOfAcquiredSlices());
+      Assert.assertEquals(20, scan.getBestIndex());
+   }
+
+   @Test
+   public void outwardScanStopsAroundTheMinimum() {
+      ZScan scan = run(ZScan.OUTWARD, 17);
+      Assert.assertEquals(20, scan.getBestIndex());
+      Assert.assertTrue(scan.getFirstIndex() < 20 && scan.getLastIndex() > 20);
+      Assert.assertTrue(scan.getNumberOfAcquiredSlices() <= 12);
+   }
+
+   @Test
+   public void oneDirectionScanStopsAfterTheMinimum() {
+      ZScan scan = run(ZScan.ONE_DIRECTION, 17);
+      Assert.assertEquals(0, scan.getFirstIndex());
+      Assert.assertEquals(20, scan.getBestIndex());
+      Assert.assertTrue(scan.getLastIndex() < 33);
+   }
+
+   @Test
+   public void descendingScanStartsFromTheLastSlice() {
+      ZScan scan = new ZScan(34, 17, ZScan.ONE_DIRECTION, 10, true);
+      Assert.assertEquals(33, scan.next());
+      for (int i = scan.next(); i >= 0; i = scan.next()) {
+         scan.record(i, metric(i));
+      }
+      Assert.assertEquals(-1, scan.getDirection());
+      Assert.assertEquals(33, scan.getLastIndex());
+      Assert.assertEquals(20, scan.getBestIndex());
+      Assert.assertTrue(scan.getFirstIndex() > 0);
+   }
+}
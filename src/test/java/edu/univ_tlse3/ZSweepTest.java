@@ -0,0 +1,142 @@
+package edu.univ_tlse3;
+
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZSweepTest {
+
+   private static final String TRUE_Z_TAG = "TrueZ";
+   private static final double SPEED_UM_PER_MS = 0.01;
+   private static final double STEP = 0.3;
+   //Below a slice
+   private static final double TOLERANCE = 0.2;
+
+   /*
+    * Focus stage moving at a constant speed and camera streaming one frame per exposure, tagged with a clock which
+    * started long before the sweep and delivered some time after the end of its exposure. Each frame is tagged with
+    * the Z of the stage at the middle of its exposure.
+    */
+   private static class StreamingMicroscope extends FakeMicroscope {
+
+      private final double cameraOriginMs;
+      private final double delayMs;
+      private long moveStartNs = 0;
+      private double moveFrom = 0;
+      private double target = 0;
+      private long streamStartNs = 0;
+      private long streamStopNs = Long.MAX_VALUE;
+      private int nextFrame = 0;
+
+      StreamingMicroscope(double cameraOriginMs, double delayMs) {
+         this.cameraOriginMs = cameraOriginMs;
+         this.delayMs = delayMs;
+      }
+
+      private double zAt(long ns) {
+         double travel = Math.min(Math.abs(target - moveFrom), SPEED_UM_PER_MS * Math.max(0, ns - moveStartNs) / 1e6);
+         return moveFrom + Math.signum(target - moveFrom) * travel;
+      }
+
+      @Override
+      public void setZPosition(double z) {
+         moveFrom = getZPosition();
+         moveStartNs = System.nanoTime();
+         target = z;
+      }
+
+      @Override
+      public double getZPosition() {
+         return zAt(System.nanoTime());
+      }
+
+      @Override
+      public boolean isFocusBusy() {
+         return getZPosition() != target;
+      }
+
+      @Override
+      public void startContinuousSequenceAcquisition() {
+         streamStartNs = System.nanoTime();
+      }
+
+      @Override
+      public void stopSequenceAcquisition() {
+         streamStopNs = System.nanoTime();
+      }
+
+      //Frames whose exposure is over and which are delivered, every exposed frame once the stream is stopped
+      @Override
+      public int getRemainingImageCount() {
+         long now = System.nanoTime();
+         while (true) {
+            long endNs = streamStartNs + (long) ((nextFrame + 1) * exposure * 1e6);
+            if (endNs > streamStopNs || (endNs + (long) (delayMs * 1e6) > now && streamStopNs == Long.MAX_VALUE)) {
+               break;
+            }
+            long middleNs = endNs - (long) (exposure / 2 * 1e6);
+            try {
+               JSONObject tags = new JSONObject();
+               tags.put(ZSweep.ELAPSED_TIME_TAG, cameraOriginMs + (middleNs - streamStartNs) / 1e6);
+               tags.put(TRUE_Z_TAG, zAt(middleNs));
+               frames.add(new TaggedImage(new short[1], tags));
+            } catch (JSONException e) {
+               throw new IllegalStateException(e);
+            }
+            nextFrame++;
+         }
+         return frames.size();
+      }
+   }
+
+   //Mean true Z of the frames given to each slice, which must be the Z of the slice
+   private static void assertSweepLocatesFrames(double cameraOriginMs, double delayMs) throws Exception {
+      StreamingMicroscope microscope = new StreamingMicroscope(cameraOriginMs, delayMs);
+      ZSweep sweep = new ZSweep(microscope);
+      sweep.run(3, image -> new double[]{image.tags.getDouble(TRUE_Z_TAG)});
+      Assert.assertTrue(sweep.getNumberOfFrames() >= 3 / SPEED_UM_PER_MS / microscope.exposure);
+      double[] zPositions = BFAutofocus.calculateZPositions(3, STEP, 1.5);
+      double[] trueZ = sweep.getMetric(zPositions);
+      int covered = 0;
+      for (int i = 0; i < zPositions.length; i++) {
+         if (!Double.isNaN(trueZ[i])) {
+            Assert.assertEquals("Slice " + i, zPositions[i], trueZ[i], TOLERANCE);
+            covered++;
+         }
+      }
+      Assert.assertTrue(covered >= zPositions.length - 1);
+   }
+
+   @Test
+   public void framesGetTheZOfTheirExposure() throws Exception {
+      assertSweepLocatesFrames(0, 0);
+   }
+
+   @Test
+   public void cameraClockOriginIsNotTheStartOfTheSweep() throws Exception {
+      assertSweepLocatesFrames(5000, 0);
+   }
+
+   @Test
+   public void framesDeliveredLateGetTheZOfTheirExposure() throws Exception {
+      assertSweepLocatesFrames(5000, 35);
+   }
+
+   @Test
+   public void metricsOfTheFramesAreAveragedSeparately() throws Exception {
+      StreamingMicroscope microscope = new StreamingMicroscope(0, 0);
+      ZSweep sweep = new ZSweep(microscope);
+      sweep.run(3, image -> new double[]{1, 2 * image.tags.getDouble(TRUE_Z_TAG)});
+      double[] zPositions = BFAutofocus.calculateZPositions(3, STEP, 1.5);
+      double[] ones = sweep.getMetric(zPositions);
+      double[] doubled = sweep.getMetric(zPositions, 1);
+      for (int i = 0; i < zPositions.length; i++) {
+         if (!Double.isNaN(ones[i])) {
+            Assert.assertEquals(1, ones[i], 0);
+            Assert.assertEquals(2 * zPositions[i], doubled[i], 2 * TOLERANCE);
+         }
+      }
+   }
+}